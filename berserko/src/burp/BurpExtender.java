@@ -8,56 +8,99 @@
 
 package burp;
 
+import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.Container;
+import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.security.SecureRandom;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.naming.Context;
+import javax.naming.NameNotFoundException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
+import javax.security.auth.RefreshFailedException;
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.kerberos.KerberosPrincipal;
 import javax.security.auth.kerberos.KerberosTicket;
 import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
 import javax.swing.DefaultListModel;
@@ -73,12 +116,16 @@ import javax.swing.JPanel;
 import javax.swing.JPasswordField;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.table.DefaultTableModel;
 
 import org.ietf.jgss.GSSContext;
 import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
 import org.ietf.jgss.GSSManager;
 import org.ietf.jgss.GSSName;
 import org.ietf.jgss.Oid;
@@ -93,6 +140,20 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		PROACTIVE, PROACTIVE_AFTER_401, REACTIVE_401
 	};
 
+	private enum LoginSource {
+		PASSWORD, KEYTAB, TICKET_CACHE
+	};
+
+	private enum SpnFailureReason {
+		NOT_IN_KDC_DATABASE(60 * 60 * 1000), WRONG_REALM(60 * 60 * 1000), TRANSIENT(60 * 1000), REJECTED_BY_HOST(60 * 60 * 1000);
+
+		private final long ttlMillis;
+
+		private SpnFailureReason(long ttl) {
+			ttlMillis = ttl;
+		}
+	};
+
 	private IBurpExtenderCallbacks callbacks;
 	private IExtensionHelpers helpers;
 
@@ -100,12 +161,18 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	
 	private boolean unlimitedJCE = false;
 
+	private static final Oid spnegoMechOid = createOid("1.3.6.1.5.5.2");
+	private static final byte[] authorizationNegotiatePrefix = "Authorization: Negotiate "
+			.getBytes(StandardCharsets.ISO_8859_1);
+
 	private GSSManager manager;
-	private LoginContext loginContext = null;
+	private volatile CachedCredential cachedCredential = null;
+	private volatile Subject loginSubject = null; // volatile so that token generation can read it without locking
 	private boolean kerberosConfigSetUp = false;
-	private boolean loginFailed = false;
+	private volatile boolean loginFailed = false;
 	// private boolean incorrectCreds = false;
-	private boolean gotTGT = false;
+	private volatile boolean gotTGT = false;
+	private volatile long loginGeneration = 0; // bumped by clearLoginContext, so a login that was already under way is thrown away
 
 	private final String extensionName = "Berserko";
 	private final String versionString = "1.1";
@@ -113,11 +180,43 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 
 	private List<String> workingSet = null;
 	private Map<String, String> hostnameToSpnMap = null;
-	private List<String> failedSpns = null;
-	private Map<String, List<String>> failedSpnsForHost = null;
+	private FailedSpnCache failedSpns = null;
+	private FailedSpnCache failedSpnsForHost = null; // keyed by failedSpnForHostKey
 	private List<String> hostnamesWithUnknownSpn = null;
+	private String learnedStateRealm = null;
+	private String learnedStateSaved = null;
+	private final Object learnedStateLock = new Object();
+	private final String learnedStateVersion = "1";
+	private final long learnedStateCheckpointMillis = 60 * 1000;
 	private ContextCache contextCache = null;
-	private Map<String,Pattern> scopeStringRegexpMap = null;
+	private final TokenPool tokenPool = new TokenPool();
+	private final TicketStore ticketStore = new TicketStore();
+	private final KdcSelector kdcSelector = new KdcSelector();
+	private final SrvResolver srvResolver = new SrvResolver();
+	private ScheduledExecutorService backgroundExecutor = null;
+	private ScheduledExecutorService tgtExecutor = null;
+	private ExecutorService ticketExecutor = null;
+	private ExecutorService housekeepingExecutor = null;
+	private ExecutorService spnProbeExecutor = null;
+	private final AtomicLong ticketBudgetExceededCount = new AtomicLong(0);
+	private final AtomicLong passwordLoginCount = new AtomicLong(0);
+	private final AtomicLong tgtRenewedCount = new AtomicLong(0);
+	private final AtomicLong contextCacheHitCount = new AtomicLong(0);
+	private final AtomicLong contextCacheMissCount = new AtomicLong(0);
+	private final AtomicLong contextCacheEvictionCount = new AtomicLong(0);
+	private final AtomicLong contextCacheExpiredCount = new AtomicLong(0);
+	private final AtomicLong responsesSkippedCount = new AtomicLong(0);
+	private final AtomicLong responsesExaminedCount = new AtomicLong(0);
+	private final AtomicLong scopeCacheHitCount = new AtomicLong(0);
+	private final AtomicLong scopeCacheMissCount = new AtomicLong(0);
+	private final Set<String> principalsWithUnrenewableTgt = ConcurrentHashMap.<String> newKeySet();
+	private ScheduledFuture<?> tgtRenewal = null;
+	private Future<?> tgtAcquisition = null;
+	private long tgtAcquisitionGeneration = 0;
+	private final Object tgtAcquisitionLock = new Object();
+	private volatile String tgtStatus = "Not acquired";
+	private volatile ScopeMatcher scopeMatcher = new ScopeMatcher(new ArrayList<String>());
+	private final ScopeCache scopeCache = new ScopeCache();
 	
 	// config
 	private String domainDnsName;
@@ -141,9 +240,40 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	private AuthStrategy authStrategy;
 
 	private String krb5File;
+
+	private int tokenPoolDepth;
+	private int tgtRenewalPercent;
+	private int tgtWaitSeconds;
+	private int ticketBudgetMillis;
+	private int spnProbeFanOut;
+	private boolean persistTickets;
+	private LoginSource loginSource;
+	private String loginSourceFile;
+	private boolean kdcFailover;
+	private boolean kdcTcpOnly;
+	private int kdcTimeoutMillis;
+	private int kdcMaxRetries;
+	private int kdcBudgetSeconds;
+	private List<RealmEntry> realmTable = new ArrayList<RealmEntry>(); // replaced, never modified
 	// end config
 
-	private Object contextLock = new Object();
+	private final Object krb5ConfLock = new Object();
+	private String appliedKrb5Conf = null; // what was last written
+	private boolean krb5ConfRefreshPending = false;
+
+	// acquiring or replacing the TGT is the only thing that needs exclusive
+	// access - token generation takes the read lock, plus a lock stripe
+	// chosen by host:port so that different hosts don't queue behind each
+	// other
+	private final ReentrantReadWriteLock tgtLock = new ReentrantReadWriteLock();
+	private final Object[] tokenLocks = new Object[64];
+	private final ConcurrentHashMap<String, TokenFlight> tokenRequestsInFlight = new ConcurrentHashMap<String, TokenFlight>();
+
+	{
+		for (int ii = 0; ii < tokenLocks.length; ii++) {
+			tokenLocks[ii] = new Object();
+		}
+	}
 
 	public void registerExtenderCallbacks(IBurpExtenderCallbacks callbacks) {
 		// keep a reference to our callbacks object
@@ -161,6 +291,60 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 
 		callbacks.registerExtensionStateListener(this);
 
+		backgroundExecutor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Berserko background");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		// logins and TGT renewals get a thread of their own, so a slow KDC
+		// can't hold them up behind the other background work, or the other
+		// way round
+		tgtExecutor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Berserko TGT");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		// only for the service ticket requests that requests are waiting
+		// on, so they never queue behind slower background work and run
+		// out of time before reaching the KDC
+		ticketExecutor = Executors.newFixedThreadPool(8, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Berserko ticket fetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// KDC probes, DNS lookups and token pool refills
+		housekeepingExecutor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Berserko housekeeping");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		spnProbeExecutor = Executors.newFixedThreadPool(8, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Berserko SPN probe");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
 		if (savedConfigAvailable()) {
 			loadConfig();
 			setDomainAndKdc(domainDnsName, kdcHost);
@@ -174,8 +358,40 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 
 		log(1, "Berserko version " + versionString);
 		
-		scopeStringRegexpMap = new HashMap<String, Pattern>();
 		unlimitedJCE = isUnlimitedJCE();
+
+		backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				tokenPool.startRefill();
+			}
+		}, TokenPool.refillIntervalMillis, TokenPool.refillIntervalMillis,
+				TimeUnit.MILLISECONDS);
+
+		backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					saveLearnedState();
+					saveTickets();
+					if (contextCache != null) {
+						contextCache.updateMaxAge(); // in case Burp's timeouts have changed
+					}
+				} catch (Exception e) {
+					log(1, "Exception saving learned host state: " + e.getMessage());
+					logException(2, e);
+				}
+			}
+		}, learnedStateCheckpointMillis, learnedStateCheckpointMillis,
+				TimeUnit.MILLISECONDS);
+
+		backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				kdcSelector.startProbe();
+			}
+		}, KdcSelector.probeIntervalMillis, KdcSelector.probeIntervalMillis,
+				TimeUnit.MILLISECONDS);
 		
 		if( !unlimitedJCE)
 		{
@@ -196,6 +412,14 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 
 	public void extensionUnloaded() {
 		saveConfig();
+		saveLearnedState();
+		saveTickets();
+		backgroundExecutor.shutdownNow();
+		tgtExecutor.shutdownNow();
+		ticketExecutor.shutdownNow();
+		housekeepingExecutor.shutdownNow();
+		spnProbeExecutor.shutdownNow();
+		tokenPool.clear();
 	}
 
 	private void alert(int level, String message) {
@@ -231,6 +455,18 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	
 	private boolean everythingInScopeDefault = false;
 	private boolean wholeDomainInScopeDefault = true;
+	private int tokenPoolDepthDefault = 4;
+	private int tgtRenewalPercentDefault = 75;
+	private int tgtWaitSecondsDefault = 5;
+	private int ticketBudgetMillisDefault = 5000;
+	private int spnProbeFanOutDefault = 4;
+	private boolean persistTicketsDefault = false;
+	private LoginSource loginSourceDefault = LoginSource.PASSWORD;
+	private boolean kdcFailoverDefault = true;
+	private boolean kdcTcpOnlyDefault = true;
+	private int kdcTimeoutMillisDefault = 3000;
+	private int kdcMaxRetriesDefault = 1;
+	private int kdcBudgetSecondsDefault = 15;
 
 	private void setDefaultConfig() {
 		masterSwitch = false;
@@ -243,9 +479,26 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		everythingInScope = everythingInScopeDefault;
 		wholeDomainInScope = wholeDomainInScopeDefault;
 		hostsInScope = new ArrayList<String>();
+		scopeMatcher = new ScopeMatcher(hostsInScope);
+		scopeCache.invalidate();
 		authStrategy = AuthStrategy.REACTIVE_401;
 		krb5File = "";
 		System.setProperty("java.security.krb5.conf", "");
+		appliedKrb5Conf = null;
+		realmTable = new ArrayList<RealmEntry>();
+		tokenPoolDepth = tokenPoolDepthDefault;
+		tgtRenewalPercent = tgtRenewalPercentDefault;
+		tgtWaitSeconds = tgtWaitSecondsDefault;
+		ticketBudgetMillis = ticketBudgetMillisDefault;
+		spnProbeFanOut = spnProbeFanOutDefault;
+		persistTickets = persistTicketsDefault;
+		loginSource = loginSourceDefault;
+		loginSourceFile = "";
+		kdcFailover = kdcFailoverDefault;
+		kdcTcpOnly = kdcTcpOnlyDefault;
+		kdcTimeoutMillis = kdcTimeoutMillisDefault;
+		kdcMaxRetries = kdcMaxRetriesDefault;
+		kdcBudgetSeconds = kdcBudgetSecondsDefault;
 	}
 
 	private void saveSetting(String a, String b) {
@@ -255,6 +508,24 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	private String loadSetting(String a) {
 		return callbacks.loadExtensionSetting(extensionName + "_" + a);
 	}
+
+	// the default if the setting was never saved, or if what was saved
+	// isn't a number (in which case we say so)
+	private int loadIntSetting(String a, int def) {
+		String value = loadSetting(a);
+
+		if (value == null) {
+			return def;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log(1, String.format("Saved %s value %s isn't a number, using %d",
+					a, value, def));
+			return def;
+		}
+	}
 	
 	private List<String> hostsListFromString( String s)
 	{
@@ -290,6 +561,73 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		return s;
 	}
 
+	// a row of the realm table: a realm, its KDCs (if empty, Java finds
+	// them in DNS) and the enctypes to use with it (if empty, Java's
+	// defaults)
+	private class RealmEntry {
+		private final String realm;
+		private final List<String> kdcs;
+		private final String enctypes;
+
+		public RealmEntry(String r, List<String> k, String e) {
+			realm = r.trim().toUpperCase();
+			kdcs = k;
+			enctypes = e.trim();
+		}
+	}
+
+	// one line per realm: realm, then the KDCs, then the enctypes, separated
+	// by tabs
+	private String realmTableToString(List<RealmEntry> table) {
+		List<String> lines = new ArrayList<String>();
+
+		for (RealmEntry re : table) {
+			lines.add(re.realm + "\t" + String.join(" ", re.kdcs) + "\t"
+					+ re.enctypes);
+		}
+
+		return String.join("\n", lines);
+	}
+
+	private List<RealmEntry> realmTableFromString(String s) {
+		List<RealmEntry> table = new ArrayList<RealmEntry>();
+
+		for (String line : s.split("\n")) {
+			String[] fields = line.split("\t", -1);
+
+			if (fields.length == 3 && !fields[0].trim().isEmpty()) {
+				table.add(new RealmEntry(fields[0], splitKdcList(fields[1]),
+						fields[2]));
+			}
+		}
+
+		return table;
+	}
+
+	private List<String> splitKdcList(String s) {
+		List<String> kdcs = new ArrayList<String>();
+
+		for (String kdc : s.trim().split("[,\\s]+")) {
+			if (!kdc.isEmpty()) {
+				kdcs.add(kdc);
+			}
+		}
+
+		return kdcs;
+	}
+
+	private String describeRealmTable() {
+		List<String> parts = new ArrayList<String>();
+
+		for (RealmEntry re : realmTable) {
+			parts.add(String.format("%s (%s)", re.realm,
+					re.kdcs.isEmpty() ? "KDCs from DNS" : String.join(", ",
+							re.kdcs)));
+		}
+
+		return parts.isEmpty() ? "None" : String.join("; ", parts);
+	}
+
 	private void logConfig() {
 		log(1, "Domain DNS Name     : " + domainDnsName);
 		log(1, "KDC Host            : " + kdcHost);
@@ -304,6 +642,20 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		log(1, "Alert level         : " + String.valueOf(alertLevel));
 		log(1, "Logging level       : " + String.valueOf(logLevel));
 		log(1, "Auth strategy       : " + authStrategy.toString());
+		log(1, "Token pool depth    : " + String.valueOf(tokenPoolDepth));
+		log(1, "TGT renewal percent : " + String.valueOf(tgtRenewalPercent));
+		log(1, "TGT wait (seconds)  : " + String.valueOf(tgtWaitSeconds));
+		log(1, "Ticket budget (ms)  : " + String.valueOf(ticketBudgetMillis));
+		log(1, "SPN probe fan-out   : " + String.valueOf(spnProbeFanOut));
+		log(1, "Persist tickets     : " + String.valueOf(persistTickets));
+		log(1, "Login source        : " + loginSource.name());
+		log(1, "Login source file   : " + loginSourceFile);
+		log(1, "KDC failover        : " + String.valueOf(kdcFailover));
+		log(1, "KDC TCP only        : " + String.valueOf(kdcTcpOnly));
+		log(1, "KDC timeout (ms)    : " + String.valueOf(kdcTimeoutMillis));
+		log(1, "KDC max retries     : " + String.valueOf(kdcMaxRetries));
+		log(1, "KDC budget (seconds): " + String.valueOf(kdcBudgetSeconds));
+		log(1, "Realm table         : " + describeRealmTable());
 	}
 
 	private void saveConfig() {
@@ -325,6 +677,20 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		saveSetting("log_level", String.valueOf(logLevel));
 		saveSetting("auth_strategy", authStrategy.toString());
 		saveSetting("krb5_file", krb5File);
+		saveSetting("token_pool_depth", String.valueOf(tokenPoolDepth));
+		saveSetting("tgt_renewal_percent", String.valueOf(tgtRenewalPercent));
+		saveSetting("tgt_wait_seconds", String.valueOf(tgtWaitSeconds));
+		saveSetting("ticket_budget_ms", String.valueOf(ticketBudgetMillis));
+		saveSetting("spn_probe_fan_out", String.valueOf(spnProbeFanOut));
+		saveSetting("persist_tickets", String.valueOf(persistTickets));
+		saveSetting("login_source", loginSource.name());
+		saveSetting("login_source_file", loginSourceFile);
+		saveSetting("kdc_failover", String.valueOf(kdcFailover));
+		saveSetting("kdc_tcp_only", String.valueOf(kdcTcpOnly));
+		saveSetting("kdc_timeout_ms", String.valueOf(kdcTimeoutMillis));
+		saveSetting("kdc_max_retries", String.valueOf(kdcMaxRetries));
+		saveSetting("kdc_budget_seconds", String.valueOf(kdcBudgetSeconds));
+		saveSetting("realm_table", realmTableToString(realmTable));
 
 		logWithTimestamp(1, "Saving config...");
 		logConfig();
@@ -379,6 +745,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		{
 			hostsInScope = new ArrayList<String>();
 		}
+		scopeMatcher = new ScopeMatcher(hostsInScope);
+		scopeCache.invalidate();
 		alertLevel = Integer.parseInt(loadSetting("alert_level"));
 		logLevel = Integer.parseInt(loadSetting("log_level"));
 		authStrategy = AuthStrategy.valueOf(loadSetting("auth_strategy"));
@@ -387,11 +755,89 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		} catch (NullPointerException e) {
 			krb5File = "";
 		}
+		tokenPoolDepth = loadIntSetting("token_pool_depth", tokenPoolDepthDefault);
+		tgtRenewalPercent = loadIntSetting("tgt_renewal_percent", tgtRenewalPercentDefault);
+		tgtWaitSeconds = loadIntSetting("tgt_wait_seconds", tgtWaitSecondsDefault);
+		ticketBudgetMillis = loadIntSetting("ticket_budget_ms", ticketBudgetMillisDefault);
+		spnProbeFanOut = loadIntSetting("spn_probe_fan_out", spnProbeFanOutDefault);
+		if( loadSetting( "persist_tickets") != null)
+		{
+			persistTickets = Boolean.parseBoolean(loadSetting("persist_tickets"));
+		}
+		else
+		{
+			persistTickets = persistTicketsDefault;
+		}
+		if( loadSetting( "login_source") != null)
+		{
+			try {
+				loginSource = LoginSource.valueOf(loadSetting("login_source"));
+			} catch (IllegalArgumentException e) {
+				log(1, String.format(
+						"Unrecognised saved login_source %s, using %s",
+						loadSetting("login_source"), loginSourceDefault));
+				loginSource = loginSourceDefault;
+			}
+		}
+		else
+		{
+			loginSource = loginSourceDefault;
+		}
+		if( loadSetting( "login_source_file") != null)
+		{
+			loginSourceFile = loadSetting("login_source_file");
+		}
+		else
+		{
+			loginSourceFile = "";
+		}
+		if( loadSetting( "kdc_failover") != null)
+		{
+			kdcFailover = Boolean.parseBoolean(loadSetting("kdc_failover"));
+		}
+		else
+		{
+			kdcFailover = kdcFailoverDefault;
+		}
+		if( loadSetting( "kdc_tcp_only") != null)
+		{
+			kdcTcpOnly = Boolean.parseBoolean(loadSetting("kdc_tcp_only"));
+		}
+		else
+		{
+			kdcTcpOnly = kdcTcpOnlyDefault;
+		}
+		kdcTimeoutMillis = loadIntSetting("kdc_timeout_ms", kdcTimeoutMillisDefault);
+		kdcMaxRetries = loadIntSetting("kdc_max_retries", kdcMaxRetriesDefault);
+		kdcBudgetSeconds = loadIntSetting("kdc_budget_seconds", kdcBudgetSecondsDefault);
+		if( loadSetting( "realm_table") != null)
+		{
+			realmTable = realmTableFromString(loadSetting("realm_table"));
+		}
+		else
+		{
+			realmTable = new ArrayList<RealmEntry>();
+		}
 
 		logWithTimestamp(1, "Loaded config...");
 		logConfig();
 	}
 
+	// host:port and SPN, separated by a tab since neither can contain one
+	private String failedSpnForHostKey(String hostColonPort, String spn) {
+		return hostColonPort + "\t" + spn;
+	}
+
+	private void addFailedSpnForHost(String hostname, int port, String spn) {
+		String key = hostnameColonPort(hostname, port).toLowerCase();
+
+		failedSpnsForHost.add(failedSpnForHostKey(key, spn),
+				SpnFailureReason.REJECTED_BY_HOST);
+
+		// in case it was picked by probing the candidate SPNs
+		hostnameToSpnMap.remove(key, spn);
+	}
+
 	private void addSpnToListIfNotInvalid(List<String> l,
 			String hostname, int port, String realm) {
 		
@@ -409,10 +855,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		for( String spn : spns)
 		{
 			if (!failedSpns.contains(spn)) {
-				if (failedSpnsForHost.containsKey(hostnameColonPort( hostname, port).toLowerCase())) {
-					if (failedSpnsForHost.get(hostnameColonPort( hostname, port).toLowerCase()).contains(spn)) {
-						return;
-					}
+				if (failedSpnsForHost.contains(failedSpnForHostKey(hostnameColonPort( hostname, port).toLowerCase(), spn))) {
+					return;
 				}
 				l.add(spn);
 			}
@@ -442,7 +886,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 					{
 						String realm = String.join( ".", Arrays.copyOfRange( tokens, ii, tokens.length));
 						
-						if( realm.toUpperCase() != getRealmName().toUpperCase())
+						if( !realm.equalsIgnoreCase(getRealmName()) && !realmAbsentFromDns(realm))
 						{
 							addSpnToListIfNotInvalid(ret, hostname.toLowerCase(), port, realm.toUpperCase());
 						}
@@ -459,6 +903,20 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		return ret;
 	}
 
+	// a realm with no KDCs in DNS can't be one we'd be referred to, so there's
+	// no point spending a TGS request on it. DNS is only believed if it has
+	// the records for our own realm, otherwise it probably doesn't serve the
+	// AD zones at all. The first time a realm comes up it gets looked up in
+	// the background and is tried as normal
+	private boolean realmAbsentFromDns(String realm) {
+		if (!srvResolver.hasRecords(getRealmName())) {
+			return false;
+		}
+
+		srvResolver.get(realm);
+		return srvResolver.isKnownAbsent(realm);
+	}
+
 	private String usernameToPrincipal(String username) {
 		// XXX: is it correct to always make the username lowercase?
 		return username.toLowerCase() + "@" + getRealmName();
@@ -475,27 +933,11 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		}
 	}
 
-	private Pattern getPatternForScopeString( String s)
-	{
-		if( scopeStringRegexpMap.containsKey(s))
-		{
-			return scopeStringRegexpMap.get(s);
-		}
-		else
-		{
-			// transform the "regexp" from the scope box to an actual hostname
-			String r = s.replace( ".", "\\.");		// dots in hostnames should be treated as literal dots
-			r = s.replace( "-", "\\-");				// same for hyphens
-			r = r.replace( "*", ".*");				// our "regexp" says that * matches zero or more characters. Needs to be ".*"
-			r = r.replace( "?", "[^.]");			// question mark is to match anything but a dot
-			
-			Pattern p = Pattern.compile(r); 
-			scopeStringRegexpMap.put( s, p);
-			return p;
-		}
-	}
-	
 	private boolean hostnameIsInScope(String hostname) {
+		return scopeCache.isInScope(hostname);
+	}
+
+	private boolean computeHostnameIsInScope(String hostname) {
 		if( everythingInScope)
 		{
 			return true;
@@ -512,14 +954,9 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				return true;
 			}
 			
-			for( String s : hostsInScope)
+			if( scopeMatcher.matches(hostname))
 			{
-				Pattern p = getPatternForScopeString(s);
-				Matcher m = p.matcher(hostname);
-				if( m.matches())
-				{
-					return true;
-				}
+				return true;
 			}
 		}
 			
@@ -530,6 +967,238 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		}
 	}	
 
+	// the scope list, compiled into a trie keyed on hostname labels from
+	// right to left. Each entry is split into the labels at its right-hand
+	// end that have no wildcards in them, which place it in the trie, and
+	// whatever is left (e.g. "*." for "*.corp.example.com"), which is kept at
+	// that node and matched against the part of the hostname to the left.
+	// The heads at each node are indexed too: "" and "*." (by far the most
+	// common) are flags, and the rest are looked up by the characters after
+	// their last wildcard or the characters before their first, whichever is
+	// longer. So checking a hostname is one walk down the trie, with a few
+	// map lookups per label, however long the list is. A matcher is never
+	// changed once built; a new one is built whenever the list changes, and
+	// swapped in. Package-private for the tests and the benchmark
+	class ScopeMatcher {
+		private final ScopeNode root = new ScopeNode();
+
+		private class ScopeNode {
+			private Map<String, ScopeNode> children = new HashMap<String, ScopeNode>();
+			private boolean endsHere = false; // head ""
+			private boolean anySubdomain = false; // head "*."
+			private Map<String, List<String>> headsBySuffix = new HashMap<String, List<String>>();
+			private Map<String, List<String>> headsByPrefix = new HashMap<String, List<String>>();
+			private List<String> otherHeads = new ArrayList<String>(); // no fixed characters at either end, e.g. "*"
+		}
+
+		public ScopeMatcher(List<String> entries) {
+			for (String entry : entries) {
+				add(entry.toLowerCase());
+			}
+		}
+
+		private void add(String entry) {
+			ScopeNode node = root;
+			int end = entry.length();
+
+			while (end >= 0) {
+				int dot = entry.lastIndexOf('.', end - 1);
+				String label = entry.substring(dot + 1, end);
+				if (label.indexOf('*') != -1 || label.indexOf('?') != -1) {
+					break;
+				}
+				node = child(node, label);
+				end = dot;
+			}
+
+			// what's left over includes the dot before the labels in the trie
+			String head = end == entry.length() ? entry : entry.substring(0,
+					end + 1);
+			addHead(node, head);
+		}
+
+		private void addHead(ScopeNode node, String head) {
+			if (head.isEmpty()) {
+				node.endsHere = true;
+				return;
+			}
+			if (head.equals("*.")) {
+				node.anySubdomain = true;
+				return;
+			}
+
+			int last = Math.max(head.lastIndexOf('*'), head.lastIndexOf('?'));
+			int first = firstWildcard(head);
+			List<String> heads;
+
+			// keyed by whichever fixed end is longer, so that e.g. "web1-?."
+			// and "web2-?." don't end up in the same list under "."
+			int suffixLength = head.length() - 1 - last;
+			if (suffixLength > 0 && suffixLength >= first) {
+				heads = headList(node.headsBySuffix, head.substring(last + 1));
+			} else if (first > 0) {
+				heads = headList(node.headsByPrefix, head.substring(0, first));
+			} else {
+				heads = node.otherHeads;
+			}
+
+			if (!heads.contains(head)) {
+				heads.add(head);
+			}
+		}
+
+		private int firstWildcard(String head) {
+			for (int ii = 0; ii < head.length(); ii++) {
+				if (head.charAt(ii) == '*' || head.charAt(ii) == '?') {
+					return ii;
+				}
+			}
+			return head.length();
+		}
+
+		private List<String> headList(Map<String, List<String>> index,
+				String key) {
+			List<String> heads = index.get(key);
+			if (heads == null) {
+				heads = new ArrayList<String>();
+				index.put(key, heads);
+			}
+			return heads;
+		}
+
+		private boolean headsMatch(ScopeNode node, String rest) {
+			if (rest.isEmpty() ? node.endsHere : node.anySubdomain
+					&& rest.endsWith(".")) {
+				return true;
+			}
+
+			// most nodes have neither, and this is the only part that
+			// depends on the length of the hostname
+			if (!node.headsBySuffix.isEmpty() || !node.headsByPrefix.isEmpty()) {
+				for (int ii = 0; ii < rest.length(); ii++) {
+					if (anyGlobMatches(node.headsBySuffix.get(rest
+							.substring(ii)), rest)
+							|| anyGlobMatches(node.headsByPrefix.get(rest
+									.substring(0, ii + 1)), rest)) {
+						return true;
+					}
+				}
+			}
+
+			return anyGlobMatches(node.otherHeads, rest);
+		}
+
+		private boolean anyGlobMatches(List<String> heads, String rest) {
+			if (heads != null) {
+				for (String head : heads) {
+					if (globMatches(head, rest)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private ScopeNode child(ScopeNode node, String label) {
+			ScopeNode c = node.children.get(label);
+			if (c == null) {
+				c = new ScopeNode();
+				node.children.put(label, c);
+			}
+			return c;
+		}
+
+		public boolean matches(String hostname) {
+			String h = hostname.toLowerCase();
+			ScopeNode node = root;
+			String rest = h; // the part of the hostname not matched in the trie yet
+			int end = h.length();
+
+			while (true) {
+				if (headsMatch(node, rest)) {
+					return true;
+				}
+
+				if (end < 0) {
+					return false;
+				}
+				int dot = h.lastIndexOf('.', end - 1);
+				node = node.children.get(h.substring(dot + 1, end));
+				if (node == null) {
+					return false;
+				}
+				rest = h.substring(0, dot + 1);
+				end = dot;
+			}
+		}
+
+		// * matches zero or more characters (dots included), ? matches any
+		// character except a dot
+		private boolean globMatches(String pattern, String s) {
+			int p = 0, i = 0, star = -1, starI = 0;
+			while (i < s.length()) {
+				if (p < pattern.length()
+						&& (pattern.charAt(p) == s.charAt(i) || (pattern
+								.charAt(p) == '?' && s.charAt(i) != '.'))) {
+					p++;
+					i++;
+				} else if (p < pattern.length() && pattern.charAt(p) == '*') {
+					star = p++;
+					starI = i;
+				} else if (star != -1) {
+					p = star + 1;
+					i = ++starI;
+				} else {
+					return false;
+				}
+			}
+			while (p < pattern.length() && pattern.charAt(p) == '*') {
+				p++;
+			}
+			return p == pattern.length();
+		}
+	}
+
+	// whether a host is in scope is asked for every request and every 401,
+	// and working it out means going through the scope list matching each
+	// entry's regexp, but the answer only changes when the scope settings or
+	// the domain do. So the answer for each host is remembered until then.
+	// Scope doesn't depend on the port, so the key is just the hostname
+	private class ScopeCache {
+		private final int maxEntries = 10000;
+		private volatile ConcurrentHashMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+		public boolean isInScope(String hostname) {
+			// an invalidate() while this is being worked out replaces the
+			// map, so an answer based on the old settings can't end up in
+			// the new one
+			ConcurrentHashMap<String, Boolean> d = decisions;
+			Boolean inScope = d.get(hostname);
+
+			if (inScope != null) {
+				scopeCacheHitCount.incrementAndGet();
+				return inScope;
+			}
+
+			scopeCacheMissCount.incrementAndGet();
+			inScope = computeHostnameIsInScope(hostname);
+			if (d.size() >= maxEntries) {
+				d.clear();
+			}
+			d.put(hostname, inScope);
+			return inScope;
+		}
+
+		// to be called after any change to the scope settings or the domain
+		public void invalidate() {
+			decisions = new ConcurrentHashMap<String, Boolean>();
+		}
+
+		public int size() {
+			return decisions.size();
+		}
+	}
+
 	private String expandHostname(String hostname) {
 		if (isPlainhostname(hostname)) {
 			return hostname + "." + domainDnsName.toLowerCase();
@@ -556,38 +1225,12 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		return String.format("Authorization: Negotiate %s", token);
 	}
 
-	private String getTokenFromAuthenticateNegotiateResponseHeader(
-			String headerLine) {
-		String pattern = "WWW-Authenticate:\\s*Negotiate\\s*(.*)";
-		Pattern r = Pattern.compile(pattern);
-
-		Matcher m = r.matcher(headerLine);
-		if (m.find()) {
-			return m.group(1);
-		} else {
-			return "";
-		}
-	}
-
-	private String getTokenFromAuthorizationNegotiateRequestHeader(
-			String headerLine) {
-		String pattern = "Authorization:\\s*Negotiate\\s*(.*)";
-		Pattern r = Pattern.compile(pattern);
-
-		Matcher m = r.matcher(headerLine);
-		if (m.find()) {
-			return m.group(1);
-		} else {
-			return "";
-		}
-	}
+	// http://stackoverflow.com/questions/1418423/the-hostname-regex
+	private final Pattern hostnamePattern = Pattern
+			.compile("^(?=.{1,255}$)[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?(?:\\.[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?)*\\.?$");
 
 	private boolean checkHostnameRegexp(String input) {
-		// http://stackoverflow.com/questions/1418423/the-hostname-regex
-		String pattern = "^(?=.{1,255}$)[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?(?:\\.[0-9A-Za-z](?:(?:[0-9A-Za-z]|-){0,61}[0-9A-Za-z])?)*\\.?$";
-		Pattern r = Pattern.compile(pattern);
-
-		Matcher m = r.matcher(input);
+		Matcher m = hostnamePattern.matcher(input);
 
 		return m.find();
 	}
@@ -605,37 +1248,38 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	 * (m.find()) { return m.group(1); } else { return ""; } }
 	 */
 
-	private String getSchemeFromAuthenticateRequestHeader(String headerLine) {
-		String pattern = "Authorization:\\s*(\\S*)\\s*.*";
-		Pattern r = Pattern.compile(pattern);
-
-		// Now create matcher object.
-		Matcher m = r.matcher(headerLine);
-		if (m.find()) {
-			return m.group(1);
-		} else {
-			return "";
-		}
-	}
-
 	private String getRealmName() {
 		return domainDnsName.toUpperCase();
 	}
 
-	private void clearLoginContext() {
+	// Package-private for the tests
+	void clearLoginContext() {
 		log(2, "Clearing login context");
 
-		synchronized (contextLock) {
-			loginContext = null;
+		tgtLock.writeLock().lock();
+		try {
+			loginGeneration++;
+			loginSubject = null;
+			cachedCredential = null;
+			gotTGT = false;
+			loginFailed = false;
+
+			if (tgtRenewal != null) {
+				tgtRenewal.cancel(false);
+				tgtRenewal = null;
+			}
+		} finally {
+			tgtLock.writeLock().unlock();
 		}
 
-		gotTGT = false;
-		loginFailed = false;
+		tokenPool.clear();
+		setTgtStatus("Not acquired");
 	}
 
 	private void setDomainAndKdc(String domain, String kdc) {
 		domainDnsName = domain;
 		kdcHost = kdc;
+		scopeCache.invalidate();
 
 		if (domain.isEmpty()) {
 			alertAndLog(1, "No domain DNS name set");
@@ -649,36 +1293,184 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 
 		clearLoginContext();
 
-		System.setProperty("java.security.krb5.realm", domain.toUpperCase());
-		System.setProperty("java.security.krb5.kdc", kdcHost);
-		workingSet = Collections.synchronizedList(new ArrayList<String>()); // this should be sufficient for synchronizing access to workingSet given that we are never iterating over it
-		hostnameToSpnMap = new ConcurrentHashMap<String, String>();
-		failedSpns = Collections.synchronizedList(new ArrayList<String>());
-		failedSpnsForHost = new ConcurrentHashMap<String, List<String>>();
-		hostnamesWithUnknownSpn = Collections
-				.synchronizedList(new ArrayList<String>());
+		// older versions set these, and Java ignores [realms] for the
+		// default realm while they're set
+		if (domain.equalsIgnoreCase(System.getProperty("java.security.krb5.realm"))) {
+			System.clearProperty("java.security.krb5.realm");
+			System.clearProperty("java.security.krb5.kdc");
+		}
+		kdcSelector.reset(kdcHost);
+		kdcSelector.startProbe();
+		resetLearnedState(domain.toUpperCase());
 		contextCache = new ContextCache();
 
 		log(2, String.format(
 				"New domain DNS name (%s) and KDC hostname (%s) set",
 				domainDnsName, kdcHost));
+
+		startTgtAcquisitionIfConfigured();
 	}
 
-	private void setCredentials(String user, String pass) {
-		username = user;
-		password = pass;
+	// which SPN each host uses, which SPNs it has rejected and which hosts do
+	// Kerberos are saved with the extension settings, one setting per realm,
+	// so that they don't have to be rediscovered through failed TGS requests
+	// and extra 401s every time Burp starts. The state is checkpointed every
+	// minute, but only written if it has changed
+	private String learnedStateToString() {
+		StringBuilder sb = new StringBuilder(learnedStateVersion);
 
-		if (user.isEmpty()) {
-			alertAndLog(1, "No username set");
-			return;
+		List<String> lines = new ArrayList<String>();
+
+		for (Map.Entry<String, String> entry : hostnameToSpnMap.entrySet()) {
+			lines.add("spn\t" + entry.getKey() + "\t" + entry.getValue());
+		}
+		// with their expiry time, so that a rejected SPN is tried again
+		// after the same time whether or not Burp was restarted meanwhile
+		for (Map.Entry<String, Long> entry : failedSpnsForHost.unexpired()
+				.entrySet()) {
+			lines.add("failed\t" + entry.getKey() + "\t" + entry.getValue());
+		}
+		synchronized (workingSet) {
+			for (String host : workingSet) {
+				lines.add("working\t" + host);
+			}
 		}
 
-		clearLoginContext();
-		// incorrectCreds = false;
+		// so that the same state always gives the same string
+		Collections.sort(lines);
 
-		log(2, String.format("New username (%s) and password set", username));
+		for (String line : lines) {
+			sb.append("\n").append(line);
+		}
+
+		return sb.toString();
 	}
-	
+
+	private void saveLearnedState() {
+		synchronized (learnedStateLock) {
+			if (learnedStateRealm == null || hostnameToSpnMap == null) {
+				return;
+			}
+
+			String state = learnedStateToString();
+
+			if (state.equals(learnedStateSaved)) {
+				return;
+			}
+
+			saveSetting("learned_state_" + learnedStateRealm, state);
+			learnedStateSaved = state;
+			log(2, "Saved learned host state for realm " + learnedStateRealm);
+		}
+	}
+
+	// starts again with no host state, saving the previous realm's first and
+	// then loading what was saved for the new realm (if realm is null, the
+	// realm stays the same and nothing is saved or loaded). This is all done
+	// under learnedStateLock, so a checkpoint can't run part way through and
+	// save the new, empty state under the old realm's key
+	private void resetLearnedState(String realm) {
+		synchronized (learnedStateLock) {
+			if (realm != null) {
+				saveLearnedState(); // for the previous realm, if there was one
+			}
+
+			workingSet = Collections.synchronizedList(new ArrayList<String>()); // this should be sufficient for synchronizing access to workingSet given that we are never iterating over it
+			hostnameToSpnMap = new ConcurrentHashMap<String, String>();
+			failedSpns = new FailedSpnCache();
+			failedSpnsForHost = new FailedSpnCache();
+			hostnamesWithUnknownSpn = Collections
+					.synchronizedList(new ArrayList<String>());
+
+			if (realm != null) {
+				loadLearnedState(realm);
+			}
+		}
+	}
+
+	private void loadLearnedState(String realm) {
+		synchronized (learnedStateLock) {
+			learnedStateRealm = realm;
+			learnedStateSaved = loadSetting("learned_state_" + realm);
+
+			if (learnedStateSaved == null) {
+				return;
+			}
+
+			String[] lines = learnedStateSaved.split("\n");
+
+			if (!lines[0].equals(learnedStateVersion)) {
+				log(1, String.format(
+						"Ignoring saved host state for realm %s - unknown version %s",
+						realm, lines[0]));
+				return;
+			}
+
+			int loaded = 0;
+
+			for (int ii = 1; ii < lines.length; ii++) {
+				String[] fields = lines[ii].split("\t");
+
+				if (fields[0].equals("spn") && fields.length == 3) {
+					hostnameToSpnMap.put(fields[1], fields[2]);
+				} else if (fields[0].equals("failed") && fields.length == 4
+						&& fields[3].matches("[0-9]+")) {
+					failedSpnsForHost.add(
+							failedSpnForHostKey(fields[1], fields[2]),
+							SpnFailureReason.REJECTED_BY_HOST,
+							Long.parseLong(fields[3]));
+				} else if (fields[0].equals("failed") && fields.length == 3) {
+					// saved before these expired, so give it a full lifetime
+					failedSpnsForHost.add(
+							failedSpnForHostKey(fields[1], fields[2]),
+							SpnFailureReason.REJECTED_BY_HOST);
+				} else if (fields[0].equals("working") && fields.length == 2) {
+					workingSet.add(fields[1]);
+				} else {
+					log(2, "Ignoring unrecognised line in saved host state: "
+							+ lines[ii]);
+					continue;
+				}
+
+				loaded++;
+			}
+
+			log(1, String.format(
+					"Loaded %d saved host state entries for realm %s", loaded,
+					realm));
+		}
+	}
+
+	private void setCredentials(String user, String pass) {
+		username = user;
+		password = pass;
+
+		if (user.isEmpty()) {
+			alertAndLog(1, "No username set");
+			return;
+		}
+
+		clearLoginContext();
+		ticketStore.delete(); // they're for whoever the previous user was
+		// incorrectCreds = false;
+
+		log(2, String.format("New username (%s) and password set", username));
+
+		startTgtAcquisitionIfConfigured();
+	}
+	
+	private void setLoginSource(LoginSource source, String file) {
+		loginSource = source;
+		loginSourceFile = file;
+
+		clearLoginContext();
+
+		log(2, String.format("New login source (%s %s) set", source.name(),
+				file));
+
+		startTgtAcquisitionIfConfigured();
+	}
+
 	private String hostnameColonPort( String hostname, int port)
 	{
 		return String.format( "%s:%d", hostname, port);
@@ -695,37 +1487,34 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		try {
 			if (messageIsRequest) {
 				if (authStrategy == AuthStrategy.PROACTIVE) {
-					IRequestInfo reqInfo = helpers.analyzeRequest(messageInfo);
-					List<String> headers = reqInfo.getHeaders();
 					String hostname = messageInfo.getHttpService().getHost();
 					int port = messageInfo.getHttpService().getPort();
 
 					if (hostnameIsInScope(hostname)) {
 						try {
-							if (headersContainStartswith(headers,
-									"Authorization")) {
-								String scheme = getSchemeFromAuthenticateRequestHeader(getHeaderStartingWith(
-										headers, "Authorization:"));
+							byte[] req = messageInfo.getRequest();
+							AuthHeaders reqAuth = new AuthHeaders(req);
+
+							if (reqAuth.hasAuthorization()) {
+								String scheme = reqAuth.authorizationScheme;
 								alertAndLog(
 										1,
 										String.format(
 												"Authorization header (%s) already applied for in-scope host %s; ignoring this host. Perhaps Burp \"Platform Authentication\" is configured against this host?",
 												scheme, hostname));
 							} else {
-								byte[] body = Arrays.copyOfRange(
-										messageInfo.getRequest(),
-										reqInfo.getBodyOffset(),
-										messageInfo.getRequest().length);
-								log(2, "Getting token for " + hostnameColonPort( hostname, port));
-								ContextTokenSpnTriple ctst = getToken(hostnameToSpn(hostname, port));
+								ContextTokenSpnTriple ctst = tokenPool.take(hostname, port);
+
+								if (ctst == null) {
+									log(2, "Getting token for " + hostnameColonPort( hostname, port));
+									ctst = getToken(hostname, port);
+								}
 
 								if (ctst != null) {
 									log(2, "Setting token in request to "
 											+ hostnameColonPort( hostname, port));
-									headers.add(buildAuthenticateHeaderFromToken(ctst
-											.getToken()));
-									messageInfo.setRequest(helpers
-											.buildHttpMessage(headers, body));
+									messageInfo.setRequest(addAuthorizationHeader(
+											req, reqAuth.headersEnd, ctst.getToken()));
 									addHostnameToWorkingSet( hostname, port);
 									if (hostnamesWithUnknownSpn
 											.contains(hostnameColonPort(hostname, port).toLowerCase())) {
@@ -742,17 +1531,16 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						}
 					}
 				} else if (authStrategy == AuthStrategy.PROACTIVE_AFTER_401) {
-					IRequestInfo reqInfo = helpers.analyzeRequest(messageInfo);
-					List<String> headers = reqInfo.getHeaders();
 					String hostname = messageInfo.getHttpService().getHost();
 					int port = messageInfo.getHttpService().getPort();
 
 					if (hostnameIsInWorkingSet(hostname, port)) {
 						try {
-							if (headersContainStartswith(headers,
-									"Authorization")) {
-								String scheme = getSchemeFromAuthenticateRequestHeader(getHeaderStartingWith(
-										headers, "Authorization:"));
+							byte[] req = messageInfo.getRequest();
+							AuthHeaders reqAuth = new AuthHeaders(req);
+
+							if (reqAuth.hasAuthorization()) {
+								String scheme = reqAuth.authorizationScheme;
 								alertAndLog(
 										1,
 										String.format(
@@ -760,19 +1548,13 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 												scheme, hostname));
 							} else {
 								log(2, "Getting token for " + hostnameColonPort( hostname, port));
-								ContextTokenSpnTriple ctst = getToken(hostnameToSpn(hostname, port));
+								ContextTokenSpnTriple ctst = getToken(hostname, port);
 
 								if (ctst != null) {
-									byte[] body = Arrays.copyOfRange(
-											messageInfo.getRequest(),
-											reqInfo.getBodyOffset(),
-											messageInfo.getRequest().length);
 									log(2, "Setting token in request to "
 											+ hostnameColonPort( hostname, port));
-									headers.add(buildAuthenticateHeaderFromToken(ctst
-											.getToken()));
-									messageInfo.setRequest(helpers
-											.buildHttpMessage(headers, body));
+									messageInfo.setRequest(addAuthorizationHeader(
+											req, reqAuth.headersEnd, ctst.getToken()));
 									if (hostnamesWithUnknownSpn
 											.contains(hostnameColonPort(hostname, port).toLowerCase())) {
 										contextCache.AddToCache(ctst);
@@ -790,8 +1572,18 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				}
 			} else {
 				byte[] responseBytes = messageInfo.getResponse();
-				IResponseInfo respInfo = helpers.analyzeResponse(responseBytes);
-				List<String> headers = respInfo.getHeaders();
+				int statusCode = getResponseStatusCode(responseBytes);
+
+				// the only responses we're interested in are 401s and
+				// responses to requests whose context we're holding on to, so
+				// nothing else needs its headers looked at
+				if (statusCode != 401 && contextCache.isEmpty()) {
+					responsesSkippedCount.incrementAndGet();
+					return;
+				}
+				responsesExaminedCount.incrementAndGet();
+				AuthHeaders respAuth = statusCode == 401 ? new AuthHeaders(
+						responseBytes) : null;
 
 				// ok, this is pretty dirty but we don't want to do anything
 				// with the responses to our own requests that we make below
@@ -801,32 +1593,24 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				// alternatively I guess we could add our own marker request
 				// header or something
 				if (toolFlag == IBurpExtenderCallbacks.TOOL_EXTENDER) {
-					IRequestInfo reqInfo = helpers.analyzeRequest(messageInfo);
-
-					if (headersContainStartswith(reqInfo.getHeaders(),
-							"Authorization: Negotiate")) {
+					if (new AuthHeaders(messageInfo.getRequest())
+							.hasNegotiateAuthorization()) {
 						return;
 					}
 				}
 
-				if (is401Negotiate(respInfo, messageInfo.getHttpService()
-						.getHost())) {
+				if (is401Negotiate(statusCode, respAuth,
+						messageInfo.getHttpService().getHost())) {
 					byte[] req = messageInfo.getRequest();
-					IRequestInfo reqInfo = helpers.analyzeRequest(messageInfo);
 					String hostname = messageInfo.getHttpService().getHost();
 					int port = messageInfo.getHttpService().getPort();
-					byte[] body = Arrays.copyOfRange(req,
-							reqInfo.getBodyOffset(), req.length);
-					List<String> requestHeaders = helpers.analyzeRequest(req)
-							.getHeaders();
+					AuthHeaders reqAuth = new AuthHeaders(req);
 
-					if (headersContainStartswith(requestHeaders,
-							"Authorization")) // this was a failed authentication...
+					if (reqAuth.hasAuthorization()) // this was a failed authentication...
 					{
 						if (hostnameIsInWorkingSet(hostname, port)) // ... a failed authentication by us
 						{
-							String requestToken = getTokenFromAuthorizationNegotiateRequestHeader(getHeaderStartingWith(
-									requestHeaders, "Authorization:"));
+							String requestToken = reqAuth.getNegotiateAuthorizationToken();
 
 							ContextTokenSpnTriple ctst = contextCache
 									.GetFromCache(requestToken);
@@ -834,8 +1618,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 							if (ctst != null) {
 								contextCache.RemoveFromCache(requestToken);
 
-								String serverToken = getTokenFromAuthenticateNegotiateResponseHeader(getHeaderStartingWith(
-										headers, "WWW-Authenticate:"));
+								String serverToken = respAuth.getNegotiateToken();
 								String err = ProcessErrorTokenResponse(
 										ctst.getContext(), serverToken);
 
@@ -856,19 +1639,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 											"SPN %s incorrect for hostname %s",
 											ctst.getSpn(), hostnameColonPort( hostname, port)));
 
-									if (!failedSpnsForHost.containsKey(hostnameColonPort( hostname, port)
-											.toLowerCase())) {
-										failedSpnsForHost.put(
-												hostnameColonPort( hostname, port).toLowerCase(),
-												new ArrayList<String>());
-									}
-									if (!failedSpnsForHost.get(
-											hostnameColonPort( hostname, port).toLowerCase()).contains(
-											ctst.getSpn())) {
-										failedSpnsForHost.get(
-												hostnameColonPort( hostname, port).toLowerCase()).add(
-												ctst.getSpn());
-									}
+									addFailedSpnForHost(hostname, port, ctst.getSpn());
 								} else {
 									alertAndLog(
 											1,
@@ -883,15 +1654,13 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 												"Failed Kerberos authentication to host %s: unknown error",
 												hostnameColonPort( hostname, port)));
 								log(2,
-										"Response from server: "
-												+ getHeaderStartingWith(
-														headers,
-														"WWW-Authenticate"));
+										"Authentication schemes offered by server: "
+												+ String.join(", ",
+														respAuth.schemes));
 							}
 
 						} else if (hostnameIsInScope(hostname)) {
-							String scheme = getSchemeFromAuthenticateRequestHeader(getHeaderStartingWith(
-									requestHeaders, "Authorization:"));
+							String scheme = reqAuth.authorizationScheme;
 							alertAndLog(
 									1,
 									String.format(
@@ -903,35 +1672,27 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 							if (hostnameIsInScope(hostname)
 									&& !hostnameIsInWorkingSet(hostname, port)) {
 								log(2, "Getting token for " + hostnameColonPort( hostname, port));
-								ContextTokenSpnTriple ctst = getToken(hostnameToSpn(hostname, port));
+								ContextTokenSpnTriple ctst = getToken(hostname, port);
 
 								if (ctst != null) {
-									requestHeaders
-											.add(buildAuthenticateHeaderFromToken(ctst
-													.getToken()));
 									log(2,
 											"Creating new authenticated request to "
 													+ hostnameColonPort( hostname, port));
 									IHttpRequestResponse resp = callbacks
 											.makeHttpRequest(messageInfo
-													.getHttpService(), helpers
-													.buildHttpMessage(
-															requestHeaders,
-															body));
+													.getHttpService(),
+													addAuthorizationHeader(req,
+															reqAuth.headersEnd,
+															ctst.getToken()));
 
 									byte[] myResponseBytes = resp.getResponse();
-									IResponseInfo myRespInfo = helpers
-											.analyzeResponse(myResponseBytes);
-									List<String> myResponseHeaders = myRespInfo
-											.getHeaders();
-
-									if (myRespInfo.getStatusCode() == 401) {
-										if (headersContainStartswith(
-												myResponseHeaders,
-												"WWW-Authenticate: Negotiate")) {
-											String serverToken = getTokenFromAuthenticateNegotiateResponseHeader(getHeaderStartingWith(
-													myResponseHeaders,
-													"WWW-Authenticate:"));
+									AuthHeaders myRespAuth = new AuthHeaders(
+											myResponseBytes);
+
+									if (getResponseStatusCode(myResponseBytes) == 401) {
+										if (myRespAuth.negotiate) {
+											String serverToken = myRespAuth
+													.getNegotiateToken();
 											String err = ProcessErrorTokenResponse(
 													ctst.getContext(),
 													serverToken);
@@ -955,23 +1716,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 																ctst.getSpn(),
 																hostnameColonPort( hostname, port)));
 
-												if (!failedSpnsForHost
-														.containsKey(hostnameColonPort( hostname, port)
-																.toLowerCase())) {
-													failedSpnsForHost
-															.put(hostnameColonPort( hostname, port)
-																	.toLowerCase(),
-																	new ArrayList<String>());
-												}
-												if (!failedSpnsForHost
-														.get(hostnameColonPort( hostname, port)
-																.toLowerCase())
-														.contains(ctst.getSpn())) {
-													failedSpnsForHost
-															.get(hostnameColonPort( hostname, port)
-																	.toLowerCase())
-															.add(ctst.getSpn());
-												}
+												addFailedSpnForHost(hostname, port, ctst.getSpn());
 
 												// TODO: maybe try again with the next SPN?
 											} else {
@@ -1016,34 +1761,26 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 							&& hostnameIsInScope(hostname)) {
 						try {
 							log(2, "Getting token for " + hostnameColonPort( hostname, port));
-							ContextTokenSpnTriple ctst = getToken(hostnameToSpn(hostname, port));
+							ContextTokenSpnTriple ctst = getToken(hostname, port);
 
 							if (ctst != null) {
-								requestHeaders
-										.add(buildAuthenticateHeaderFromToken(ctst
-												.getToken()));
-
 								log(2, "Creating new authenticated request to "
 										+ hostnameColonPort( hostname, port));
 								IHttpRequestResponse resp = callbacks
 										.makeHttpRequest(messageInfo
-												.getHttpService(), helpers
-												.buildHttpMessage(
-														requestHeaders, body));
+												.getHttpService(),
+												addAuthorizationHeader(req,
+														reqAuth.headersEnd,
+														ctst.getToken()));
 
 								byte[] myResponseBytes = resp.getResponse();
-								IResponseInfo myRespInfo = helpers
-										.analyzeResponse(myResponseBytes);
-								List<String> myResponseHeaders = myRespInfo
-										.getHeaders();
-
-								if (myRespInfo.getStatusCode() == 401) {
-									if (headersContainStartswith(
-											myResponseHeaders,
-											"WWW-Authenticate: Negotiate")) {
-										String serverToken = getTokenFromAuthenticateNegotiateResponseHeader(getHeaderStartingWith(
-												myResponseHeaders,
-												"WWW-Authenticate:"));
+								AuthHeaders myRespAuth = new AuthHeaders(
+										myResponseBytes);
+
+								if (getResponseStatusCode(myResponseBytes) == 401) {
+									if (myRespAuth.negotiate) {
+										String serverToken = myRespAuth
+												.getNegotiateToken();
 										String err = ProcessErrorTokenResponse(
 												ctst.getContext(), serverToken);
 
@@ -1057,20 +1794,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 														"SPN %s incorrect for hostname %s",
 														ctst.getSpn(), hostnameColonPort( hostname, port)));
 
-										if (!failedSpnsForHost
-												.containsKey(hostnameColonPort( hostname, port)
-														.toLowerCase())) {
-											failedSpnsForHost.put(
-													hostnameColonPort( hostname, port).toLowerCase(),
-													new ArrayList<String>());
-										}
-										if (!failedSpnsForHost.get(
-												hostnameColonPort( hostname, port).toLowerCase())
-												.contains(ctst.getSpn())) {
-											failedSpnsForHost.get(
-													hostnameColonPort( hostname, port).toLowerCase())
-													.add(ctst.getSpn());
-										}
+										addFailedSpnForHost(hostname, port, ctst.getSpn());
 
 										// TODO: maybe try again with the next SPN?
 									} else {
@@ -1103,11 +1827,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						byte[] req = messageInfo.getRequest();
 						String hostname = messageInfo.getHttpService().getHost();
 						int port = messageInfo.getHttpService().getPort();
-						List<String> requestHeaders = helpers.analyzeRequest(
-								req).getHeaders();
-
-						String requestToken = getTokenFromAuthorizationNegotiateRequestHeader(getHeaderStartingWith(
-								requestHeaders, "Authorization:"));
+						String requestToken = new AuthHeaders(req)
+								.getNegotiateAuthorizationToken();
 
 						ContextTokenSpnTriple ctst = contextCache
 								.GetFromCache(requestToken);
@@ -1138,40 +1859,308 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		}
 	}
 
-	private boolean headersContainStartswith(List<String> headers, String target) {
-		for (String s : headers) {
-			if (s.startsWith(target)) {
-				return true;
-			}
+	// a copy of the request with an Authorization: Negotiate header added
+	// after the existing headers (headersEnd comes from AuthHeaders). The
+	// requests can be large (file uploads, Scanner), so rather than have Burp
+	// parse the request into a header list, copy out the body and then build
+	// it all again, the header line is spliced in, in a single buffer of the
+	// right size. The body is unchanged, so Content-Length is still correct.
+	// Package-private for the tests and the benchmark
+	byte[] addAuthorizationHeader(byte[] req, int headersEnd,
+			String token) {
+		if (headersEnd == -1) {
+			// not something we can splice into, so leave it to Burp
+			IRequestInfo reqInfo = helpers.analyzeRequest(req);
+			List<String> headers = reqInfo.getHeaders();
+			headers.add(buildAuthenticateHeaderFromToken(token));
+			return helpers.buildHttpMessage(headers, Arrays.copyOfRange(req,
+					reqInfo.getBodyOffset(), req.length));
 		}
 
-		return false;
+		// the line is put together in the output buffer - building it with
+		// String.format first costs more than copying a small request
+		boolean crlf = headersEnd >= 2 && req[headersEnd - 2] == '\r';
+		byte[] out = new byte[req.length + authorizationNegotiatePrefix.length
+				+ token.length() + (crlf ? 2 : 1)];
+		int pos = 0;
+
+		System.arraycopy(req, 0, out, pos, headersEnd);
+		pos += headersEnd;
+		System.arraycopy(authorizationNegotiatePrefix, 0, out, pos,
+				authorizationNegotiatePrefix.length);
+		pos += authorizationNegotiatePrefix.length;
+		byte[] tokenBytes = token.getBytes(StandardCharsets.ISO_8859_1);
+		System.arraycopy(tokenBytes, 0, out, pos, tokenBytes.length);
+		pos += tokenBytes.length;
+		if (crlf) {
+			out[pos++] = '\r';
+		}
+		out[pos++] = '\n';
+		System.arraycopy(req, headersEnd, out, pos, req.length - headersEnd);
+
+		return out;
 	}
 
-	private String getHeaderStartingWith(List<String> headers, String target) {
-		for (String s : headers) {
-			if (s.startsWith(target)) {
-				return s;
+	// the authentication headers of a request or response, read straight
+	// from the raw message in a single pass over its headers. This picks up
+	// every challenge in the WWW-Authenticate headers, whether they're on
+	// separate lines or joined with commas on one line, and the Authorization
+	// header. Header names and schemes are matched without regard to case,
+	// and the only strings made are the schemes and tokens themselves.
+	// It's package-private, as are the parts the tests look at
+	class AuthHeaders {
+		List<String> schemes = new ArrayList<String>(); // from WWW-Authenticate, in order
+		boolean negotiate = false;
+		boolean ntlm = false;
+		private String negotiateToken = null; // from the first Negotiate challenge that has one
+		private String authorizationScheme = null; // null if there's no Authorization header
+		private String authorizationToken = "";
+		int headersEnd = -1; // offset of the blank line after the headers, -1 if there isn't one
+
+		public AuthHeaders(byte[] msg) {
+			int lineStart = 0;
+
+			// skip the request or status line
+			while (lineStart < msg.length && msg[lineStart] != '\n') {
+				lineStart++;
+			}
+			lineStart++;
+
+			while (lineStart < msg.length) {
+				int lineEnd = lineStart;
+				while (lineEnd < msg.length && msg[lineEnd] != '\n') {
+					lineEnd++;
+				}
+				if (lineEnd == msg.length) {
+					break; // a header line that never ends isn't a header
+				}
+				int valueEnd = lineEnd;
+				if (valueEnd > lineStart && msg[valueEnd - 1] == '\r') {
+					valueEnd--;
+				}
+				if (valueEnd == lineStart) {
+					headersEnd = lineStart;
+					break;
+				}
+
+				int valueStart = matchHeaderName(msg, lineStart, valueEnd,
+						"www-authenticate");
+				if (valueStart != -1) {
+					parseChallenges(msg, valueStart, valueEnd);
+				} else if (authorizationScheme == null) {
+					valueStart = matchHeaderName(msg, lineStart, valueEnd,
+							"authorization");
+					if (valueStart != -1) {
+						parseAuthorization(msg, valueStart, valueEnd);
+					}
+				}
+
+				lineStart = lineEnd + 1;
 			}
 		}
 
-		return "";
+		public boolean hasAuthorization() {
+			return authorizationScheme != null;
+		}
+
+		public boolean hasNegotiateAuthorization() {
+			return "Negotiate".equalsIgnoreCase(authorizationScheme);
+		}
+
+		// the token from an Authorization: Negotiate header, or "" if there
+		// isn't one
+		public String getNegotiateAuthorizationToken() {
+			return hasNegotiateAuthorization() ? authorizationToken : "";
+		}
+
+		// the token from the server's Negotiate challenge, or "" if there
+		// isn't one
+		public String getNegotiateToken() {
+			return negotiateToken == null ? "" : negotiateToken;
+		}
+
+		// if the line is the named header, the offset of the start of its
+		// value, otherwise -1. name must be lower case
+		private int matchHeaderName(byte[] msg, int start, int end,
+				String name) {
+			if (end - start <= name.length()) {
+				return -1;
+			}
+			for (int ii = 0; ii < name.length(); ii++) {
+				if (toLower(msg[start + ii]) != name.charAt(ii)) {
+					return -1;
+				}
+			}
+			int pos = skipSpaces(msg, start + name.length(), end);
+			if (pos == end || msg[pos] != ':') {
+				return -1;
+			}
+			return skipSpaces(msg, pos + 1, end);
+		}
+
+		// a challenge is a scheme optionally followed by either a token or
+		// comma separated name=value parameters, and challenges are
+		// themselves separated by commas, so a comma followed by something
+		// that isn't a name=value parameter starts a new challenge
+		private void parseChallenges(byte[] msg, int start, int end) {
+			int pos = start;
+
+			while (pos < end) {
+				pos = skipSpacesAndCommas(msg, pos, end);
+				if (pos == end) {
+					break;
+				}
+
+				int wordStart = pos;
+				pos = skipWord(msg, pos, end);
+				int wordEnd = pos;
+
+				if (isParameter(msg, wordEnd, end)) {
+					pos = skipParameter(msg, wordEnd, end);
+					continue;
+				}
+
+				String scheme = new String(msg, wordStart, wordEnd - wordStart,
+						StandardCharsets.ISO_8859_1);
+				schemes.add(scheme);
+				boolean isNegotiate = scheme.equalsIgnoreCase("Negotiate");
+				negotiate |= isNegotiate;
+				ntlm |= scheme.equalsIgnoreCase("NTLM");
+
+				pos = skipSpaces(msg, pos, end);
+				if (pos == end || msg[pos] == ',') {
+					continue;
+				}
+
+				int tokenStart = pos;
+				pos = skipWord(msg, pos, end);
+				if (isParameter(msg, pos, end)) {
+					pos = skipParameter(msg, pos, end);
+				} else {
+					while (pos < end && msg[pos] == '=') {
+						pos++; // base64 padding
+					}
+					if (isNegotiate && negotiateToken == null) {
+						negotiateToken = new String(msg, tokenStart, pos
+								- tokenStart, StandardCharsets.ISO_8859_1);
+					}
+				}
+			}
+		}
+
+		private void parseAuthorization(byte[] msg, int start, int end) {
+			int pos = skipWord(msg, start, end);
+			authorizationScheme = new String(msg, start, pos - start,
+					StandardCharsets.ISO_8859_1);
+			pos = skipSpaces(msg, pos, end);
+			authorizationToken = new String(msg, pos, end - pos,
+					StandardCharsets.ISO_8859_1);
+		}
+
+		// whether the word that ends at pos is the name of a name=value
+		// parameter, rather than a token ending in base64 padding
+		boolean isParameter(byte[] msg, int pos, int end) {
+			pos = skipSpaces(msg, pos, end);
+			if (pos == end || msg[pos] != '=') {
+				return false;
+			}
+			while (pos < end && msg[pos] == '=') {
+				pos++;
+			}
+			pos = skipSpaces(msg, pos, end);
+			return pos < end && msg[pos] != ',';
+		}
+
+		// skips the "=value" after a parameter name, where the value may be
+		// a quoted string containing commas
+		int skipParameter(byte[] msg, int pos, int end) {
+			pos = skipSpaces(msg, pos, end);
+			if (pos < end && msg[pos] == '=') {
+				pos = skipSpaces(msg, pos + 1, end);
+			}
+			if (pos < end && msg[pos] == '"') {
+				pos++;
+				while (pos < end && msg[pos] != '"') {
+					if (msg[pos] == '\\') {
+						pos++;
+					}
+					pos++;
+				}
+				return Math.min(pos + 1, end);
+			}
+			while (pos < end && msg[pos] != ',') {
+				pos++;
+			}
+			return pos;
+		}
+
+		private int skipWord(byte[] msg, int pos, int end) {
+			while (pos < end && msg[pos] != ' ' && msg[pos] != '\t'
+					&& msg[pos] != ',' && msg[pos] != '=') {
+				pos++;
+			}
+			return pos;
+		}
+
+		private int skipSpaces(byte[] msg, int pos, int end) {
+			while (pos < end && (msg[pos] == ' ' || msg[pos] == '\t')) {
+				pos++;
+			}
+			return pos;
+		}
+
+		private int skipSpacesAndCommas(byte[] msg, int pos, int end) {
+			while (pos < end
+					&& (msg[pos] == ' ' || msg[pos] == '\t' || msg[pos] == ',')) {
+				pos++;
+			}
+			return pos;
+		}
+
+		private int toLower(byte b) {
+			return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+		}
 	}
 
-	private boolean is401Negotiate(IResponseInfo respInfo, String hostname) {
-		if (!(respInfo.getStatusCode() == 401)) {
-			return false;
+	// reads the status code from the status line ("HTTP/1.1 401 ...") rather
+	// than having Burp analyse the whole response, which it would otherwise
+	// do for every response passing through the proxy, spider and scanner.
+	// Anything that doesn't look like a status line is left to Burp.
+	// Package-private for the tests
+	int getResponseStatusCode(byte[] resp) {
+		if (resp != null && resp.length >= 12 && resp[0] == 'H'
+				&& resp[1] == 'T' && resp[2] == 'T' && resp[3] == 'P'
+				&& resp[4] == '/') {
+			int pos = 5;
+			while (pos < resp.length && resp[pos] != ' ') {
+				pos++;
+			}
+			if (pos + 4 <= resp.length) {
+				int code = 0;
+				for (int ii = pos + 1; ii < pos + 4; ii++) {
+					if (resp[ii] < '0' || resp[ii] > '9') {
+						return helpers.analyzeResponse(resp).getStatusCode();
+					}
+					code = code * 10 + (resp[ii] - '0');
+				}
+				if (pos + 4 == resp.length || resp[pos + 4] == ' '
+						|| resp[pos + 4] == '\r' || resp[pos + 4] == '\n') {
+					return code;
+				}
+			}
 		}
 
-		List<String> headers = respInfo.getHeaders();
+		return helpers.analyzeResponse(resp).getStatusCode();
+	}
 
-		boolean supportsNegotiate = false;
-		boolean supportsNTLM = false;
+	private boolean is401Negotiate(int statusCode, AuthHeaders respAuth,
+			String hostname) {
+		if (!(statusCode == 401)) {
+			return false;
+		}
 
-		supportsNegotiate = headersContainStartswith(headers,
-				"WWW-Authenticate: Negotiate");
-		supportsNTLM = headersContainStartswith(headers,
-				"WWW-Authenticate: NTLM");
+		boolean supportsNegotiate = respAuth.negotiate;
+		boolean supportsNTLM = respAuth.ntlm;
 
 		if (ignoreNTLMServers) {
 			if( supportsNegotiate && supportsNTLM)
@@ -1184,12 +2173,51 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		}
 	}
 
+	private static Oid createOid(String oid) {
+		try {
+			return new Oid(oid);
+		} catch (GSSException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private class CachedCredential {
+		private Subject subject;
+		private GSSCredential credential;
+
+		public CachedCredential(Subject sub, GSSCredential cred) {
+			subject = sub;
+			credential = cred;
+		}
+	}
+
+	// the initiator credential only depends on the TGT in the Subject, so
+	// there's no need to look it up again for every token. Has to be called
+	// from inside Subject.doAs for the given Subject
+	private GSSCredential getInitiatorCredential(Subject subject)
+			throws GSSException {
+		CachedCredential cc = cachedCredential;
+
+		if (cc != null && cc.subject == subject) {
+			return cc.credential;
+		}
+
+		GSSCredential cred = manager.createCredential(null,
+				GSSCredential.INDEFINITE_LIFETIME, spnegoMechOid,
+				GSSCredential.INITIATE_ONLY);
+		cachedCredential = new CachedCredential(subject, cred);
+
+		return cred;
+	}
+
 	// http://stackoverflow.com/questions/24074507/how-to-generate-the-kerberos-security-token
 	@SuppressWarnings("rawtypes")
 	private class GetTokenAction implements PrivilegedExceptionAction {
+		private Subject subject;
 		private List<String> spns;
 
-		public GetTokenAction(List<String> s) {
+		public GetTokenAction(Subject sub, List<String> s) {
+			subject = sub;
 			spns = s;
 		}
 
@@ -1209,13 +2237,9 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				log(2, "Trying SPN: " + spn);
 
 				try {
-					Oid spnegoMechOid = new Oid("1.3.6.1.5.5.2");
-
 					GSSName gssServerName = manager.createName(spn, null);
 
-					GSSCredential userCreds = manager.createCredential(null,
-							GSSCredential.INDEFINITE_LIFETIME, spnegoMechOid,
-							GSSCredential.INITIATE_ONLY);
+					GSSCredential userCreds = getInitiatorCredential(subject);
 
 					context = manager.createContext(gssServerName,
 							spnegoMechOid, userCreds,
@@ -1248,9 +2272,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 								String.format(
 										"Failed to acquire service ticket for %s - service name not recognised by KDC",
 										spn));
-						if (!failedSpns.contains(spn)) {
-							failedSpns.add(spn);
-						}
+						failedSpns.add(spn, SpnFailureReason.NOT_IN_KDC_DATABASE);
 						continue;
 					} else if (e.getMessage().contains(
 							"Message stream modified")) {
@@ -1259,9 +2281,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 								String.format(
 										"Failed to acquire service ticket for %s - host is in a different realm?",
 										spn));
-						if (!failedSpns.contains(spn)) {
-							failedSpns.add(spn);
-						}
+						failedSpns.add(spn, SpnFailureReason.WRONG_REALM);
 						continue;
 					} else if (e.getMessage().contains(
 							"Failed to find any Kerberos tgt")
@@ -1279,6 +2299,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 										"Failed to acquire token for service %s, error message was %s",
 										spn, e.getMessage()));
 						logException(2, e);
+						failedSpns.add(spn, SpnFailureReason.TRANSIENT);
 					}
 
 					//return null;
@@ -1312,355 +2333,2318 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		return "";
 	}
 
+	private Object getTokenLock(String hostnameColonPort) {
+		return tokenLocks[(hostnameColonPort.hashCode() & 0x7fffffff)
+				% tokenLocks.length];
+	}
+
 	@SuppressWarnings("unchecked")
-	private ContextTokenSpnTriple getToken(List<String> spns) {
-		ContextTokenSpnTriple ctst = null;
+	private ContextTokenSpnTriple runGetTokenAction(Subject sub,
+			String lockKey, List<String> spns)
+			throws PrivilegedActionException {
+		tgtLock.readLock().lock();
+		try {
+			GetTokenAction tokenAction = new GetTokenAction(sub, spns);
+
+			if (lockKey == null) {
+				return (ContextTokenSpnTriple) Subject.doAs(sub, tokenAction);
+			}
+
+			synchronized (getTokenLock(lockKey)) {
+				if (spns.size() > 1 && spnProbeFanOut > 1) {
+					return probeSpns(sub, lockKey, spns);
+				}
 
-		if (!gotTGT) {
-			setupLoginContext();
+				return (ContextTokenSpnTriple) Subject.doAs(sub, tokenAction);
+			}
+		} finally {
+			tgtLock.readLock().unlock();
 		}
+	}
 
-		if (gotTGT) {
-			synchronized (contextLock) {
-				try {
-					GetTokenAction tokenAction = new GetTokenAction(spns);
-					ctst = (ContextTokenSpnTriple) Subject.doAs(
-							loginContext.getSubject(), tokenAction);
-				} catch (PrivilegedActionException e) {
-					if (e.getException().getClass().getName()
-							.contains("TGTExpiredException")) {
-						clearLoginContext();
-						setupLoginContext();
-
-						if (!gotTGT) {
-							return null;
-						}
+	// a host we haven't seen before can have a dozen candidate SPNs, and
+	// trying them one after another costs a KDC round trip for each one that
+	// fails. So ask the KDC about up to spnProbeFanOut of them at once, and
+	// take the first one (in the usual order of preference) that works.
+	// The winner is remembered for the host straight away - if the server
+	// then rejects it, addFailedSpnForHost forgets it again
+	@SuppressWarnings("unchecked")
+	private ContextTokenSpnTriple probeSpns(final Subject sub, String lockKey,
+			List<String> spns) throws PrivilegedActionException {
+		for (int start = 0; start < spns.size(); start += spnProbeFanOut) {
+			List<TokenFlight> probes = new ArrayList<TokenFlight>();
+			final AtomicBoolean finished = new AtomicBoolean(false);
+
+			for (final String spn : spns.subList(start,
+					Math.min(spns.size(), start + spnProbeFanOut))) {
+				TokenFlight probe = new TokenFlight(
+						new Callable<ContextTokenSpnTriple>() {
+							@Override
+							public ContextTokenSpnTriple call()
+									throws PrivilegedActionException {
+								// don't bother the KDC if a winner has been
+								// found already
+								if (finished.get()) {
+									return null;
+								}
 
-						try {
-							GetTokenAction tokenAction = new GetTokenAction(
-									spns);
-							ctst = (ContextTokenSpnTriple) Subject.doAs(
-									loginContext.getSubject(), tokenAction);
-						} catch (PrivilegedActionException ee) {
-							alertAndLog(1,
-									"Exception thrown when trying to get token with new TGT: "
-											+ ee.getMessage());
-							logException(2, ee);
-							return null;
-						}
-					} else {
-						alertAndLog(
-								1,
-								"Exception thrown in getToken: "
-										+ e.getMessage());
-						logException(2, e);
-						return null;
+								return (ContextTokenSpnTriple) Subject.doAs(
+										sub,
+										new GetTokenAction(sub, Collections
+												.singletonList(spn)));
+							}
+						});
+
+				probes.add(probe);
+				spnProbeExecutor.execute(probe);
+			}
+
+			log(2, String.format("Probing %d candidate SPNs for %s",
+					probes.size(), lockKey));
+
+			try {
+				for (int ii = 0; ii < probes.size(); ii++) {
+					ContextTokenSpnTriple ctst = getProbeResult(probes.get(ii));
+
+					if (ctst != null) {
+						log(2, String.format("SPN %s found for %s by probing",
+								ctst.getSpn(), lockKey));
+						probes.get(ii).claim();
+						hostnameToSpnMap.put(lockKey, ctst.getSpn());
+						return ctst;
 					}
 				}
+			} finally {
+				// any still running carry on, and the service tickets they
+				// get end up in the Subject - there's no need to wait for
+				// them. The contexts of the ones that lost are disposed of as
+				// they finish, and any not started yet won't go to the KDC
+				finished.set(true);
+
+				for (TokenFlight probe : probes) {
+					probe.abandon();
+				}
 			}
-		} else {
-			return null;
 		}
 
-		return ctst;
+		return null;
 	}
 
-	private void setupKerberosConfig() {
-		if (kerberosConfigSetUp) {
-			return;
+	private ContextTokenSpnTriple getProbeResult(
+			Future<ContextTokenSpnTriple> probe)
+			throws PrivilegedActionException {
+		try {
+			return probe.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof PrivilegedActionException) {
+				throw (PrivilegedActionException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else {
+				throw new RuntimeException(e.getCause());
+			}
 		}
+	}
 
-		Configuration.setConfiguration(null);
+	// a token request to the KDC, run on the ticket fetch or SPN probe
+	// executor. The context it produces belongs to whoever started it, but if
+	// they stop waiting (because the service ticket budget ran out, or another
+	// SPN probe won) nothing else will ever use it, so it's disposed of as soon
+	// as the request is done
+	private class TokenFlight extends FutureTask<ContextTokenSpnTriple> {
+		private final AtomicBoolean claimed = new AtomicBoolean(false);
+		private volatile boolean abandoned = false;
+
+		public TokenFlight(Callable<ContextTokenSpnTriple> callable) {
+			super(callable);
+		}
 
-		System.setProperty("javax.security.auth.useSubjectCredsOnly", "true"); // necessary to stop it requesting a new service ticket for each request
+		@Override
+		protected void done() {
+			if (abandoned) {
+				disposeUnclaimed();
+			}
+		}
 
-		try {
-			Configuration config = new Configuration() {
-				@Override
-				public AppConfigurationEntry[] getAppConfigurationEntry(
-						String name) {
+		public void claim() {
+			claimed.set(true);
+		}
 
-					Map<String, Object> map = new HashMap<String, Object>();
-					map.put("doNotPrompt", "false");
-					map.put("useTicketCache", "false");
-					map.put("refreshKrb5Config", "true");
+		public void abandon() {
+			abandoned = true;
 
-					return new AppConfigurationEntry[] { new AppConfigurationEntry(
-							"com.sun.security.auth.module.Krb5LoginModule",
-							AppConfigurationEntry.LoginModuleControlFlag.REQUIRED,
-							map) };
-				}
+			// done() may already have run before abandoned was set
+			if (isDone()) {
+				disposeUnclaimed();
+			}
+		}
 
-				@Override
-				public void refresh() {
-					// ignored
-				}
-			};
+		private void disposeUnclaimed() {
+			if (!claimed.compareAndSet(false, true)) {
+				return;
+			}
 
-			Configuration.setConfiguration(config);
+			try {
+				ContextTokenSpnTriple ctst = get();
 
-			kerberosConfigSetUp = true;
-		} catch (Exception e) {
-			alertAndLog(
-					1,
-					"Error setting up Kerberos configuration: "
-							+ e.getMessage());
-			logException(2, e);
+				if (ctst != null) {
+					ctst.dispose();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// the request failed, so there's no context to dispose of
+			}
 		}
 	}
 
-	private boolean checkTgtForwardableFlag(Subject sub) {
-		for (Object ob : sub.getPrivateCredentials()) {
-			if (ob instanceof KerberosTicket) {
-				KerberosTicket kt = (KerberosTicket) ob;
-				boolean[] flags = kt.getFlags();
-				return flags[1];
+	// waits for at most the service ticket budget (if there is one)
+	private ContextTokenSpnTriple getFlightResult(
+			FutureTask<ContextTokenSpnTriple> flight)
+			throws PrivilegedActionException, TimeoutException {
+		try {
+			if (ticketBudgetMillis > 0) {
+				return flight.get(ticketBudgetMillis, TimeUnit.MILLISECONDS);
+			} else {
+				return flight.get();
 			}
-		}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof PrivilegedActionException) {
+				throw (PrivilegedActionException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	// when a new host starts returning 401s, lots of threads ask for a token
+	// for the same SPNs at once. Only the first of them goes to the KDC - the
+	// rest wait for its result, and then build their own context from the
+	// service ticket it obtained (or give up if it failed).
+	// The KDC exchange runs on the ticket fetch executor, so that requests
+	// only wait for it for as long as the service ticket budget allows - if
+	// it takes longer, it carries on in the background and the service
+	// ticket it gets will be used by later requests.
+	// Package-private for the tests and the benchmark
+	ContextTokenSpnTriple getTokenWithLoginContext(
+			final Subject sub, final String lockKey,
+			final List<String> spns) throws PrivilegedActionException {
+		final String flightKey = String.join(" ", spns);
+
+		final TokenFlight flight = new TokenFlight(
+				new Callable<ContextTokenSpnTriple>() {
+					@Override
+					public ContextTokenSpnTriple call()
+							throws PrivilegedActionException {
+						return runGetTokenAction(sub, lockKey, spns);
+					}
+				});
+
+		TokenFlight leader = tokenRequestsInFlight
+				.putIfAbsent(flightKey, flight);
+
+		ContextTokenSpnTriple leaderCtst;
+
+		try {
+			if (leader == null) {
+				ticketExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							flight.run();
+						} finally {
+							tokenRequestsInFlight.remove(flightKey, flight);
+						}
+					}
+				});
+
+				ContextTokenSpnTriple ctst = null;
+
+				try {
+					ctst = getFlightResult(flight);
+				} finally {
+					if (ctst != null) {
+						flight.claim();
+					} else {
+						flight.abandon();
+					}
+				}
+
+				return ctst;
+			}
+
+			log(2, "Waiting for token request already in progress for "
+					+ lockKey);
+
+			leaderCtst = getFlightResult(leader);
+		} catch (TimeoutException e) {
+			ticketBudgetExceededCount.incrementAndGet();
+			log(1, String.format(
+					"Service ticket for %s not obtained within %d ms - not authenticating this request",
+					lockKey, ticketBudgetMillis));
+			return null;
+		}
+
+		if (leaderCtst == null) {
+			return null;
+		}
+
+		return runGetTokenAction(sub, null,
+				Collections.singletonList(leaderCtst.getSpn()));
+	}
+
+	private ContextTokenSpnTriple getToken(String hostname, int port) {
+		if (!gotTGT && !waitForTgt()) {
+			log(2, String.format(
+					"No TGT available yet - not authenticating request to %s",
+					hostnameColonPort(hostname, port)));
+			return null;
+		}
+
+		Subject sub = loginSubject;
+
+		if (!gotTGT || sub == null) {
+			return null;
+		}
+
+		List<String> spns = hostnameToSpn(hostname, port);
+		String lockKey = hostnameColonPort(hostname, port).toLowerCase();
+
+		try {
+			return getTokenWithLoginContext(sub, lockKey, spns);
+		} catch (PrivilegedActionException e) {
+			if (e.getException().getClass().getName()
+					.contains("TGTExpiredException")) {
+				renewLoginContext(sub);
+
+				sub = loginSubject;
+
+				if (!gotTGT || sub == null) {
+					return null;
+				}
+
+				try {
+					return getTokenWithLoginContext(sub, lockKey, spns);
+				} catch (PrivilegedActionException ee) {
+					alertAndLog(1,
+							"Exception thrown when trying to get token with new TGT: "
+									+ ee.getMessage());
+					logException(2, ee);
+					return null;
+				}
+			} else {
+				alertAndLog(1, "Exception thrown in getToken: " + e.getMessage());
+				logException(2, e);
+				return null;
+			}
+		}
+	}
+
+	// several threads can notice the expired TGT at the same time - only the
+	// first one through should drop it. The new TGT is acquired on the TGT
+	// thread like any other, so no request thread does the login itself or
+	// holds the lock while it happens, and requests wait for it no longer
+	// than tgtWaitSeconds
+	private void renewLoginContext(Subject expired) {
+		tgtLock.writeLock().lock();
+		try {
+			if (loginSubject == expired) {
+				clearLoginContext();
+			}
+		} finally {
+			tgtLock.writeLock().unlock();
+		}
+
+		waitForTgt();
+	}
+
+	private KerberosTicket getTgt(Subject sub) {
+		synchronized (sub.getPrivateCredentials()) {
+			for (Object ob : sub.getPrivateCredentials()) {
+				if (ob instanceof KerberosTicket) {
+					KerberosTicket kt = (KerberosTicket) ob;
+					String realm = kt.getClient().getRealm();
+					if (kt.getServer().getName()
+							.equals("krbtgt/" + realm + "@" + realm)) {
+						return kt;
+					}
+				}
+			}
+		}
+
+		return null;
+	}
+
+	// called with the write lock held
+	private void scheduleTgtRenewal(Subject sub) {
+		KerberosTicket tgt = getTgt(sub);
+
+		if (tgt == null || tgt.getEndTime() == null) {
+			return;
+		}
+
+		long start = (tgt.getStartTime() != null) ? tgt.getStartTime()
+				.getTime() : tgt.getAuthTime().getTime();
+		long end = tgt.getEndTime().getTime();
+		long renewAt = start + (end - start) * tgtRenewalPercent / 100;
+
+		scheduleTgtRenewal(sub, renewAt - System.currentTimeMillis());
+	}
+
+	// called with the write lock held
+	private void scheduleTgtRenewal(final Subject sub, long delayMillis) {
+		if (tgtRenewal != null) {
+			tgtRenewal.cancel(false);
+		}
+
+		delayMillis = Math.max(0, delayMillis);
+		log(2, String.format("TGT renewal scheduled in %d seconds",
+				delayMillis / 1000));
+
+		tgtRenewal = tgtExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					renewTgt(sub);
+				} catch (Exception e) {
+					log(1, "Exception renewing TGT: " + e.getMessage());
+					logException(2, e);
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// after the renewal point has been changed. Done on the TGT thread, so
+	// that the Swing thread never waits for the write lock
+	private void rescheduleTgtRenewal() {
+		try {
+			tgtExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					tgtLock.writeLock().lock();
+					try {
+						// not if renewal was given up on, e.g. because the
+						// KDC rejected the password
+						if (gotTGT && loginSubject != null
+								&& tgtRenewal != null && !tgtRenewal.isDone()) {
+							scheduleTgtRenewal(loginSubject);
+						}
+					} finally {
+						tgtLock.writeLock().unlock();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// being unloaded
+		}
+	}
+
+	// renewing doesn't change the Subject that requests are using - the new
+	// TGT goes into a new Subject, which is swapped in once it is ready
+	private Subject renewTgtIntoNewSubject(Subject current, KerberosTicket tgt)
+			throws RefreshFailedException {
+		KerberosTicket renewedTgt = new KerberosTicket(tgt.getEncoded(),
+				tgt.getClient(), tgt.getServer(), tgt.getSessionKey()
+						.getEncoded(), tgt.getSessionKeyType(),
+				tgt.getFlags(), tgt.getAuthTime(), tgt.getStartTime(),
+				tgt.getEndTime(), tgt.getRenewTill(),
+				tgt.getClientAddresses());
+		renewedTgt.refresh();
+
+		Subject renewed = new Subject();
+		renewed.getPrincipals().addAll(current.getPrincipals());
+		renewed.getPrivateCredentials().add(renewedTgt);
+
+		// service tickets don't depend on the TGT, so carry them over
+		synchronized (current.getPrivateCredentials()) {
+			for (Object ob : current.getPrivateCredentials()) {
+				if (ob != tgt) {
+					renewed.getPrivateCredentials().add(ob);
+				}
+			}
+		}
+
+		return renewed;
+	}
+
+	private void renewTgt(Subject current) {
+		if (loginSubject != current) {
+			return;
+		}
+
+		Subject renewed = null;
+		KerberosTicket tgt = getTgt(current);
+
+		if (tgt != null && tgt.isRenewable() && tgt.getRenewTill() != null
+				&& tgt.getRenewTill().after(tgt.getEndTime())) {
+			try {
+				renewed = renewTgtIntoNewSubject(current, tgt);
+				tgtRenewedCount.incrementAndGet();
+				log(2, "TGT renewed in background");
+			} catch (Exception e) {
+				log(2, "Failed to renew TGT, logging in again instead: "
+						+ e.getMessage());
+			}
+		}
+
+		// e.g. a TGT from the ticket store when the password wasn't saved.
+		// Logging in with a blank password would only be rejected, and each
+		// rejection counts towards locking the account out
+		if (renewed == null && loginSource == LoginSource.PASSWORD
+				&& password.isEmpty()) {
+			alertAndLog(1,
+					"The TGT can't be renewed and no password is set, so a new one can't be acquired when it expires. Set the password in the Domain Credentials panel.");
+			setTgtStatusFromSubject("Not renewable - password needed", current);
+			return;
+		}
+
+		if (renewed == null) {
+			try {
+				renewed = kerberosLogin();
+				log(2, "New TGT acquired in background");
+				checkTgtRenewable(renewed);
+			} catch (Exception e) {
+				log(1, "Failed to acquire new TGT in background: "
+						+ e.getMessage());
+				logException(2, e);
+
+				// don't keep retrying with credentials that the KDC has
+				// rejected - the account could get locked out
+				if (e.getMessage() != null
+						&& (e.getMessage().startsWith(
+								"Pre-authentication information was invalid") || e
+								.getMessage().startsWith(
+										"Client not found in Kerberos database"))) {
+					return;
+				}
+
+				tgtLock.writeLock().lock();
+				try {
+					if (loginSubject == current) {
+						scheduleTgtRenewal(current, 60 * 1000);
+					}
+				} finally {
+					tgtLock.writeLock().unlock();
+				}
+				return;
+			}
+		}
+
+		tgtLock.writeLock().lock();
+		try {
+			if (loginSubject == current) {
+				loginSubject = renewed;
+				cachedCredential = null;
+				setTgtStatusFromSubject("Renewed", renewed);
+				scheduleTgtRenewal(renewed);
+			}
+		} finally {
+			tgtLock.writeLock().unlock();
+		}
+
+		saveTickets();
+	}
+
+	private void saveTickets() {
+		Subject sub = loginSubject;
+
+		if (persistTickets && gotTGT && sub != null) {
+			ticketStore.save(sub, usernameToPrincipal(username));
+		}
+	}
+
+	private void setTgtStatus(final String status) {
+		tgtStatus = status;
+
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (tgtStatusTextField != null) {
+					tgtStatusTextField.setText(status);
+				}
+			}
+		});
+	}
+
+	private void setTgtStatusFromSubject(String status, Subject sub) {
+		KerberosTicket tgt = getTgt(sub);
+
+		if (tgt != null && tgt.getEndTime() != null) {
+			setTgtStatus(String.format("%s (expires %s)", status,
+					new Timestamp(tgt.getEndTime().getTime())));
+		} else {
+			setTgtStatus(status);
+		}
+	}
+
+	// the TGT is acquired on the TGT thread rather than on whichever
+	// request thread happens to need it first - if the KDC is unreachable,
+	// that can take around 90 seconds
+	private Future<?> startTgtAcquisition() {
+		return startTgtAcquisition(false);
+	}
+
+	// with storeOnly, only the ticket store is tried - there's no login if it
+	// doesn't have a usable TGT
+	private Future<?> startTgtAcquisition(final boolean storeOnly) {
+		synchronized (tgtAcquisitionLock) {
+			// one started before the settings last changed will throw its
+			// TGT away, so queue up another behind it
+			if (tgtAcquisition == null || tgtAcquisition.isDone()
+					|| tgtAcquisitionGeneration != loginGeneration) {
+				if (gotTGT || loginFailed) {
+					return null;
+				}
+
+				tgtAcquisitionGeneration = loginGeneration;
+				tgtAcquisition = tgtExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						setupLoginContext(storeOnly);
+					}
+				});
+			}
+
+			return tgtAcquisition;
+		}
+	}
+
+	// start getting a TGT as soon as we have everything needed for it, rather
+	// than waiting for the first request
+	private void startTgtAcquisitionIfConfigured() {
+		if (!masterSwitch || domainDnsName.isEmpty() || kdcHost.isEmpty()
+				|| username.isEmpty()) {
+			return;
+		}
+
+		if (!password.isEmpty() || loginSource != LoginSource.PASSWORD) {
+			startTgtAcquisition();
+		} else if (persistTickets && ticketStore.exists()) {
+			// no password, so only go ahead if the store actually loads
+			startTgtAcquisition(true);
+		}
+	}
+
+	// returns false if there's still no TGT after waiting for up to the
+	// configured number of seconds
+	private boolean waitForTgt() {
+		Future<?> f = startTgtAcquisition();
+
+		if (f != null) {
+			try {
+				f.get(tgtWaitSeconds, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				log(2, "Timed out waiting for TGT");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				logException(2, e);
+			}
+		}
+
+		return gotTGT;
+	}
+
+	private void setupKerberosConfig() {
+		if (kerberosConfigSetUp) {
+			return;
+		}
+
+		Configuration.setConfiguration(null);
+
+		System.setProperty("javax.security.auth.useSubjectCredsOnly", "true"); // necessary to stop it requesting a new service ticket for each request
+
+		try {
+			Configuration config = new Configuration() {
+				@Override
+				public AppConfigurationEntry[] getAppConfigurationEntry(
+						String name) {
+
+					Map<String, Object> map = new HashMap<String, Object>();
+					map.put("refreshKrb5Config",
+							String.valueOf(takeKrb5ConfRefresh()));
+
+					// with a keytab or a ticket cache, logging in again
+					// (including when the TGT is renewed) doesn't need the
+					// password - the key or the TGT is read from the file
+					if (loginSource == LoginSource.KEYTAB) {
+						map.put("doNotPrompt", "true");
+						map.put("useTicketCache", "false");
+						map.put("useKeyTab", "true");
+						map.put("keyTab", loginSourceFile);
+						map.put("principal", usernameToPrincipal(username));
+					} else if (loginSource == LoginSource.TICKET_CACHE) {
+						map.put("doNotPrompt", "true");
+						map.put("useTicketCache", "true");
+						if (!loginSourceFile.isEmpty()) {
+							map.put("ticketCache", loginSourceFile);
+						}
+						map.put("principal", usernameToPrincipal(username));
+						map.put("renewTGT", "true");
+					} else {
+						map.put("doNotPrompt", "false");
+						map.put("useTicketCache", "false");
+					}
+
+					return new AppConfigurationEntry[] { new AppConfigurationEntry(
+							"com.sun.security.auth.module.Krb5LoginModule",
+							AppConfigurationEntry.LoginModuleControlFlag.REQUIRED,
+							map) };
+				}
+
+				@Override
+				public void refresh() {
+					// ignored
+				}
+			};
+
+			Configuration.setConfiguration(config);
+
+			kerberosConfigSetUp = true;
+		} catch (Exception e) {
+			alertAndLog(
+					1,
+					"Error setting up Kerberos configuration: "
+							+ e.getMessage());
+			logException(2, e);
+		}
+	}
+
+	private boolean checkTgtForwardableFlag(Subject sub) {
+		for (Object ob : sub.getPrivateCredentials()) {
+			if (ob instanceof KerberosTicket) {
+				KerberosTicket kt = (KerberosTicket) ob;
+				boolean[] flags = kt.getFlags();
+				return flags[1];
+			}
+		}
+
+		return false;
+	}
+
+	// Java always sends the first AS-REQ without pre-authentication and only
+	// adds it after the KDC replies with PREAUTH_REQUIRED, and there's no way
+	// of giving it the etype info up front - so every login costs two round
+	// trips to the KDC. Renewing a TGT costs one, but only works if the KDC
+	// gave us a renewable TGT, which Java only asks for if krb5.conf sets
+	// renew_lifetime. Say so (once per principal) if that's not happening
+	private void checkTgtRenewable(Subject sub) {
+		KerberosTicket tgt = getTgt(sub);
+
+		if (tgt == null) {
+			return;
+		}
+
+		String principal = tgt.getClient().getName();
+
+		if (tgt.isRenewable()) {
+			principalsWithUnrenewableTgt.remove(principal);
+		} else if (principalsWithUnrenewableTgt.add(principal)) {
+			alertAndLog(
+					1,
+					String.format(
+							"TGT for %s is not renewable, so each new TGT needs a full login (two round trips to the KDC). Berserko sets \"renew_lifetime\" in [libdefaults] unless krb5.conf sets it, so check the value there, or the KDC's maximum renewable life for the account.",
+							principal));
+		}
+	}
+
+	// only rewrites the file, and only has Java re-read it, when what it
+	// would contain has changed - rather than refreshing Java's Kerberos
+	// config on every login. Returns true if it changed.
+	// The config can't be scoped to our own logins: Java keeps one Kerberos
+	// config for the whole JVM, Krb5LoginModule has no option for choosing a
+	// file, and java.security.krb5.conf is the only public way of pointing
+	// Java at one. So the property stays, and Burp itself (or another
+	// extension) using Kerberos sees the same file - which is the user's
+	// file with only our managed settings replaced
+	private boolean setKrb5Config() {
+		synchronized (krb5ConfLock) {
+			int[] timeoutAndRetries = getEffectiveKdcTimeoutAndRetries();
+			List<String> lines = buildEffectiveKrb5Conf(timeoutAndRetries);
+			String conf = String.join("\n", lines);
+
+			updateKdcTransportDisplay(String.format(
+					"%s, %d ms timeout, %d %s per KDC, %d KDC%s (at most %d s)",
+					kdcTcpOnly ? "TCP only" : "UDP first",
+					timeoutAndRetries[0], timeoutAndRetries[1],
+					timeoutAndRetries[1] == 1 ? "try" : "tries",
+					kdcSelector.getKdcCount(),
+					kdcSelector.getKdcCount() == 1 ? "" : "s",
+					((long) Math.max(1, kdcSelector.getKdcCount())
+							* timeoutAndRetries[0] * timeoutAndRetries[1] + 999) / 1000));
+
+			if (conf.equals(appliedKrb5Conf)) {
+				return false;
+			}
+
+			String path = writeEffectiveKrb5Conf(lines);
+
+			if (path == null) {
+				// the old way, so that at least the current realm works
+				System.setProperty("java.security.krb5.conf", krb5File);
+				if (!domainDnsName.isEmpty()) {
+					System.setProperty("java.security.krb5.realm",
+							getRealmName());
+					System.setProperty("java.security.krb5.kdc",
+							String.join(":", kdcSelector.getOrder()));
+				}
+				return false;
+			}
+
+			System.setProperty("java.security.krb5.conf", path);
+			appliedKrb5Conf = conf;
+			krb5ConfRefreshPending = true;
+			log(2, "Kerberos config written to " + path);
+			return true;
+		}
+	}
+
+	// whether the next login needs Java to re-read the config file, because
+	// it has changed and Java hasn't been made to re-read it yet
+	private boolean takeKrb5ConfRefresh() {
+		synchronized (krb5ConfLock) {
+			boolean pending = krb5ConfRefreshPending;
+			krb5ConfRefreshPending = false;
+			return pending;
+		}
+	}
+
+	// the krb5.conf that Java actually reads is generated from the user's
+	// one (or the system one if there isn't one), with the settings that
+	// Berserko manages replaced by ours - the default realm, the KDC
+	// transport settings and the enctypes in [libdefaults], and the KDCs and
+	// domain mappings for the current realm and the realms in the realm
+	// table. So none of this has to be edited by hand, and none of it has to
+	// be set through the JVM-wide java.security.krb5.realm and
+	// java.security.krb5.kdc properties (which also stop Java looking at
+	// [realms] for the default realm).
+	// Java's transport defaults are to try UDP first (AD tickets are usually
+	// too big for UDP, so that's a wasted round trip per exchange), and 3
+	// tries of 30 seconds per KDC, which is where the 90 second hangs come
+	// from
+	private final String[] managedLibdefaults = { "default_realm",
+			"udp_preference_limit", "kdc_timeout", "max_retries" };
+
+	// Java only asks for a renewable TGT if renew_lifetime is set, and
+	// without one every new TGT needs a full login. These are only written
+	// if the user's file doesn't set them, so they can still be overridden
+	private final String[][] defaultLibdefaults = { { "renewable", "true" },
+			{ "renew_lifetime", "7d" } };
+
+	private String getBaseKrb5File() {
+		if (!krb5File.isEmpty()) {
+			return krb5File;
+		}
+
+		// same places Java would look
+		String[] candidates = {
+				System.getProperty("java.home") + File.separator + "lib"
+						+ File.separator + "security" + File.separator
+						+ "krb5.conf",
+				System.getProperty("os.name").startsWith("Windows") ? System
+						.getenv("windir") + File.separator + "krb5.ini"
+						: "/etc/krb5.conf" };
+
+		for (String candidate : candidates) {
+			if (new File(candidate).exists()) {
+				return candidate;
+			}
+		}
+
+		return "";
+	}
+
+	// the worst case is every KDC timing out on every try, so fit the number
+	// of tries (and if need be, the timeout) into the overall budget
+	private int[] getEffectiveKdcTimeoutAndRetries() {
+		int kdcs = Math.max(1, kdcSelector.getKdcCount());
+		long budgetMillis = kdcBudgetSeconds * 1000L;
+		int timeout = kdcTimeoutMillis;
+		int retries = kdcMaxRetries;
+
+		while (retries > 1 && (long) kdcs * retries * timeout > budgetMillis) {
+			retries--;
+		}
+		if ((long) kdcs * timeout > budgetMillis) {
+			timeout = (int) Math.max(500, budgetMillis / kdcs);
+		}
+
+		return new int[] { timeout, retries };
+	}
+
+	// the realms whose [realms] and [domain_realm] entries we write: the
+	// current one, with the KDCs in the order KdcSelector has put them in,
+	// and the ones in the realm table
+	private Map<String, RealmEntry> getManagedRealms() {
+		Map<String, RealmEntry> realms = new LinkedHashMap<String, RealmEntry>();
+
+		if (!domainDnsName.isEmpty()) {
+			RealmEntry home = new RealmEntry(getRealmName(), kdcSelector
+					.getOrder(), "");
+			realms.put(home.realm, home);
+		}
+
+		for (RealmEntry re : realmTable) {
+			RealmEntry existing = realms.get(re.realm);
+
+			if (existing == null) {
+				realms.put(re.realm, re);
+			} else {
+				// extra KDCs for the current realm go after the ones found
+				// and probed
+				List<String> kdcs = new ArrayList<String>(existing.kdcs);
+				for (String kdc : re.kdcs) {
+					if (!kdcs.contains(kdc)) {
+						kdcs.add(kdc);
+					}
+				}
+				realms.put(re.realm, new RealmEntry(re.realm, kdcs,
+						re.enctypes));
+			}
+		}
+
+		return realms;
+	}
+
+	private List<String> buildEffectiveKrb5Conf(int[] timeoutAndRetries) {
+		Map<String, RealmEntry> realms = getManagedRealms();
+
+		// Java's enctype settings are for all realms at once: the TGT uses
+		// the current realm's, and service tickets can use any realm's
+		String tktEnctypes = "";
+		List<String> tgsEnctypes = new ArrayList<String>();
+		for (RealmEntry re : realms.values()) {
+			if (re.realm.equals(getRealmName())) {
+				tktEnctypes = re.enctypes;
+			}
+			for (String etype : re.enctypes.split("\\s+")) {
+				if (!etype.isEmpty() && !tgsEnctypes.contains(etype)) {
+					tgsEnctypes.add(etype);
+				}
+			}
+		}
+
+		List<String> libdefaults = new ArrayList<String>();
+		List<String> libdefaultsKeys = new ArrayList<String>(
+				Arrays.asList(managedLibdefaults));
+		if (!domainDnsName.isEmpty()) {
+			libdefaults.add("\tdefault_realm = " + getRealmName());
+		}
+		if (kdcTcpOnly) {
+			libdefaults.add("\tudp_preference_limit = 1");
+		}
+		libdefaults.add("\tkdc_timeout = " + timeoutAndRetries[0]);
+		libdefaults.add("\tmax_retries = " + timeoutAndRetries[1]);
+		if (!tktEnctypes.isEmpty()) {
+			libdefaults.add("\tdefault_tkt_enctypes = " + tktEnctypes);
+			libdefaultsKeys.add("default_tkt_enctypes");
+		}
+		if (!tgsEnctypes.isEmpty()) {
+			libdefaults.add("\tdefault_tgs_enctypes = "
+					+ String.join(" ", tgsEnctypes));
+			libdefaultsKeys.add("default_tgs_enctypes");
+		}
+
+		List<String> realmLines = new ArrayList<String>();
+		List<String> domainRealmLines = new ArrayList<String>();
+		List<String> domainRealmKeys = new ArrayList<String>();
+		for (RealmEntry re : realms.values()) {
+			if (!re.kdcs.isEmpty()) {
+				realmLines.add("\t" + re.realm + " = {");
+				for (String kdc : re.kdcs) {
+					realmLines.add("\t\tkdc = " + kdc);
+				}
+				realmLines.add("\t}");
+			}
+
+			String domain = re.realm.toLowerCase();
+			domainRealmLines.add("\t." + domain + " = " + re.realm);
+			domainRealmLines.add("\t" + domain + " = " + re.realm);
+			domainRealmKeys.add("." + domain);
+			domainRealmKeys.add(domain);
+		}
+
+		Map<String, List<String>> managed = new LinkedHashMap<String, List<String>>();
+		managed.put("[libdefaults]", libdefaults);
+		managed.put("[realms]", realmLines);
+		managed.put("[domain_realm]", domainRealmLines);
+
+		List<String> lines = new ArrayList<String>();
+		Set<String> inserted = new HashSet<String>();
+		Set<String> baseLibdefaultsKeys = new HashSet<String>();
+		int libdefaultsIndex = -1;
+		String base = getBaseKrb5File();
+
+		if (!base.isEmpty()) {
+			try {
+				String section = "";
+				int skipDepth = 0;
+
+				for (String line : Files.readAllLines(new File(base).toPath(),
+						StandardCharsets.UTF_8)) {
+					String trimmed = line.trim();
+
+					// the rest of a [realms] block that we're replacing
+					if (skipDepth > 0) {
+						skipDepth += countChar(trimmed, '{')
+								- countChar(trimmed, '}');
+						continue;
+					}
+
+					if (trimmed.startsWith("[")) {
+						section = trimmed.toLowerCase();
+						lines.add(line);
+						if (managed.containsKey(section)
+								&& inserted.add(section)) {
+							lines.addAll(managed.get(section));
+							if (section.equals("[libdefaults]")) {
+								libdefaultsIndex = lines.size();
+							}
+						}
+						continue;
+					}
+
+					String key = trimmed.split("=")[0].trim();
+
+					if (section.equals("[libdefaults]")) {
+						baseLibdefaultsKeys.add(key);
+					}
+					if (section.equals("[libdefaults]")
+							&& libdefaultsKeys.contains(key)) {
+						continue;
+					}
+					if (section.equals("[realms]")
+							&& realms.containsKey(key.toUpperCase())
+							&& trimmed.contains("{")) {
+						skipDepth = countChar(trimmed, '{')
+								- countChar(trimmed, '}');
+						continue;
+					}
+					if (section.equals("[domain_realm]")
+							&& domainRealmKeys.contains(key.toLowerCase())) {
+						continue;
+					}
+
+					lines.add(line);
+				}
+			} catch (Exception e) {
+				log(1, String.format("Couldn't read krb5.conf file %s: %s",
+						base, e.getMessage()));
+				lines.clear();
+				inserted.clear();
+				baseLibdefaultsKeys.clear();
+			}
+		}
+
+		List<String> defaults = new ArrayList<String>();
+		for (String[] kv : defaultLibdefaults) {
+			if (!baseLibdefaultsKeys.contains(kv[0])) {
+				defaults.add("\t" + kv[0] + " = " + kv[1]);
+			}
+		}
+		if (inserted.contains("[libdefaults]")) {
+			lines.addAll(libdefaultsIndex, defaults);
+		} else {
+			libdefaults.addAll(defaults);
+		}
+
+		for (Map.Entry<String, List<String>> e : managed.entrySet()) {
+			if (!inserted.contains(e.getKey()) && !e.getValue().isEmpty()) {
+				lines.add(e.getKey());
+				lines.addAll(e.getValue());
+			}
+		}
+
+		return lines;
+	}
+
+	private int countChar(String s, char c) {
+		int n = 0;
+		for (int ii = 0; ii < s.length(); ii++) {
+			if (s.charAt(ii) == c) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	// written to a temporary file and moved into place, so Java never sees
+	// a half-written file. Returns null if it couldn't be written
+	private String writeEffectiveKrb5Conf(List<String> lines) {
+		try {
+			File file = new File(new File(System.getProperty("user.home"),
+					".berserko"), "krb5.conf");
+			file.getParentFile().mkdirs();
+			File tmp = File.createTempFile("krb5", ".tmp",
+					file.getParentFile());
+			Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			return file.getPath();
+		} catch (Exception e) {
+			log(1, "Couldn't write effective krb5.conf file, using "
+					+ krb5File + " as it is: " + e.getMessage());
+			logException(2, e);
+			return null;
+		}
+	}
+
+	// for when something in the config changes while we've already got a
+	// TGT. If Java can't be made to re-read the file now, it will be at the
+	// next login
+	private void applyKrb5Config() {
+		if (setKrb5Config() && refreshJavaKerberosConfig()) {
+			takeKrb5ConfRefresh();
+		}
+	}
+
+	private void updateKdcTransportDisplay(final String transport) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (kdcTransportTextField != null) {
+					kdcTransportTextField.setText(transport);
+				}
+			}
+		});
+	}
+	
+	private void clearKerberosState()
+	{
+		clearLoginContext();
+		ticketStore.delete();
+		
+		resetLearnedState(null); // the next checkpoint saves the cleared state
+	}
+
+	private void setupLoginContext(boolean storeOnly) {
+		if (loginFailed) {
+			return; // don't keep trying to get a TGT after a failure, until we
+					// are provided with new domain details or creds or whatever
+		}
+
+		if (domainDnsName.isEmpty()) {
+			alertAndLog(1,
+					"Domain DNS name is blank - not trying to acquire TGT");
+			loginFailed = true;
+			return;
+		}
+
+		if (kdcHost.isEmpty()) {
+			alertAndLog(1, "KDC hostname is blank - not trying to acquire TGT");
+			loginFailed = true;
+			return;
+		}
+
+		if (username.isEmpty()) {
+			alertAndLog(1, "User is blank - not trying to acquire TGT");
+			loginFailed = true;
+			return;
+		}
+
+		setKrb5Config();
+
+		setupKerberosConfig();
+
+		long generation;
+
+		tgtLock.readLock().lock();
+		try {
+			if (gotTGT || loginFailed) {
+				return; // another thread got here first
+			}
+			generation = loginGeneration;
+		} finally {
+			tgtLock.readLock().unlock();
+		}
+
+		// the ticket store and the AS exchange are done without holding
+		// tgtLock - the KDC can take a long time to answer, and meanwhile
+		// token requests, renewals and clearLoginContext (which is called on
+		// the Swing thread when the settings change) would all be waiting
+		// for it. The new Subject is swapped in afterwards, unless the
+		// settings have changed in the meantime
+		Subject sub = null;
+		boolean fromStore = false;
+
+		if (persistTickets) {
+			sub = ticketStore.load(usernameToPrincipal(username));
+			fromStore = sub != null;
+		}
+
+		if (sub == null) {
+			if (storeOnly) {
+				log(2, "No usable TGT in ticket store and no password - not logging in");
+				return;
+			}
+
+			try {
+				setTgtStatus("Acquiring...");
+				log(2,
+						String.format(
+								"Attempting to acquire TGT for realm %s at KDC %s with user %s",
+								getRealmName(), kdcHost, username));
+				sub = kerberosLogin();
+				log(2, "TGT successfully acquired");
+				checkTgtRenewable(sub);
+			} catch (Exception e) {
+				tgtLock.writeLock().lock();
+				try {
+					if (loginGeneration != generation) {
+						log(2, "Settings changed while logging in - ignoring the failure: "
+								+ e.getMessage());
+						return;
+					}
+					loginFailed = true;
+				} finally {
+					tgtLock.writeLock().unlock();
+				}
+
+				reportLoginFailure(e);
+				return;
+			}
+		}
+
+		tgtLock.writeLock().lock();
+		try {
+			if (loginGeneration != generation || gotTGT) {
+				log(2, "Settings changed while logging in - not using the new TGT");
+				return;
+			}
+
+			loginSubject = sub;
+			gotTGT = true;
+			setTgtStatusFromSubject(fromStore ? "Loaded from ticket store"
+					: "Acquired", sub);
+			scheduleTgtRenewal(sub);
+		} finally {
+			tgtLock.writeLock().unlock();
+		}
+
+		if (!fromStore) {
+			saveTickets();
+
+			boolean forwardable = checkTgtForwardableFlag(sub);
+
+			if (forwardable) {
+				log(1, "TGT is forwardable - delegation should work OK");
+			} else {
+				log(1,
+						"TGT is not forwardable so delegation will not work.");
+			}
+		}
+	}
+
+	private void reportLoginFailure(Exception e) {
+		if ((e.getCause() != null)
+				&& (e.getCause().getClass().getName() == "java.net.UnknownHostException")) {
+			alertAndLog(
+					1,
+					String.format(
+							"Failed to acquire TGT on domain %s with user %s - couldn't find DC %s. Not making further attempts until domain settings are changed.",
+							domainDnsName, username, kdcHost));
+		} else if (e.getMessage().startsWith(
+				"Client not found in Kerberos database")) {
+			alertAndLog(
+					1,
+					String.format(
+							"Failed to acquire TGT on domain %s with user %s - username appears to be invalid. Not making further attempts, to avoid account lockout. Try setting new credentials (and checking the domain details)",
+							domainDnsName, username));
+			// incorrectCreds = true;
+		} else if (e.getMessage().startsWith(
+				"Pre-authentication information was invalid")) {
+			if (password.isEmpty()) {
+				alertAndLog(
+						1,
+						String.format(
+								"Failed to acquire TGT on domain %s with user %s - password appears to be invalid (it is blank). Not making further attempts, to avoid account lockout. Try setting new credentials (and checking the domain details)",
+								domainDnsName, username));
+				// incorrectCreds = true;
+			} else {
+				alertAndLog(
+						1,
+						String.format(
+								"Failed to acquire TGT on domain %s with user %s - password appears to be invalid. Not making further attempts, to avoid account lockout. Try setting new credentials (and checking the domain details)",
+								domainDnsName, username));
+				// incorrectCreds = true;
+			}
+		} else if (loginSource != LoginSource.PASSWORD
+				&& e.getMessage().startsWith("Unable to obtain password")) {
+			alertAndLog(
+					1,
+					String.format(
+							"Failed to acquire TGT on domain %s with user %s - no usable key or TGT for this user found in %s %s. Not making further attempts until the settings are changed.",
+							domainDnsName,
+							username,
+							loginSource == LoginSource.KEYTAB ? "keytab"
+									: "ticket cache",
+							loginSourceFile.isEmpty() ? "(default location)"
+									: loginSourceFile));
+		} else if( e.getMessage().startsWith( "KDC has no support for encryption type"))
+		{
+			if( unlimitedJCE)
+			{
+				alertAndLog( 1, "Failed to acquire TGT - encryption algorithm not supported by KDC. This is unexpected, as you appear to have the JCE Unlimited Strength Jurisdiction Policy installed.");
+			}
+			else
+			{
+				alertAndLog( 1, "Failed to acquire TGT - encryption algorithm not supported by KDC. This is likely to be because you do not have the JCE Unlimited Strength Jurisdiction Policy installed. See http://docs.oracle.com/javase/7/docs/technotes/guides/security/SunProviders.html#importlimits. Also note that newer versions of Burp seem to have a workaround for this.");
+			}
+		} else {
+			alertAndLog(
+					1,
+					String.format(
+							"Failed to acquire TGT on domain %s with user %s. Not making further attempts until domain settings are changed. Error was: %s",
+							domainDnsName, username, e.getMessage()));
+			logException(2, e);
+		}
+
+		setTgtStatus("Failed: " + e.getMessage());
+	}
+
+	private Subject kerberosLogin() throws LoginException {
+		long start = System.nanoTime();
+		LoginContext loginContext = new LoginContext("KrbLogin",
+				new KerberosCallBackHandler(username, password));
+		loginContext.login();
+
+		if (loginSource == LoginSource.PASSWORD) {
+			passwordLoginCount.incrementAndGet();
+			log(2, String.format("Logged in using password in %d ms",
+					(System.nanoTime() - start) / 1000000));
+		}
+
+		return loginContext.getSubject();
+	}
+
+	class KerberosCallBackHandler implements CallbackHandler {
+
+		private final String user;
+		private final String password;
+
+		public KerberosCallBackHandler(String user, String password) {
+			this.user = user;
+			this.password = password;
+		}
+
+		public void handle(Callback[] callbacks) throws IOException,
+				UnsupportedCallbackException {
+
+			for (Callback callback : callbacks) {
+
+				if (callback instanceof NameCallback) {
+					NameCallback nc = (NameCallback) callback;
+					if (user == null) {
+						nc.setName(usernameToPrincipal("berserkotest"));
+					} else {
+						nc.setName(usernameToPrincipal(user));
+					}
+				} else if (callback instanceof PasswordCallback) {
+					PasswordCallback pc = (PasswordCallback) callback;
+					if (user == null) {
+						pc.setPassword("berserkotest".toCharArray());
+					} else {
+						pc.setPassword(password.toCharArray());
+					}
+				} else {
+					throw new UnsupportedCallbackException(callback,
+							"Unknown Callback");
+				}
+
+			}
+		}
+	}
+
+	// package-private for the tests
+	class ContextTokenSpnTriple {
+		private GSSContext context;
+		private String token;
+		private String spn;
+
+		public ContextTokenSpnTriple(GSSContext c, String s, String t) {
+			context = c;
+			token = t;
+			spn = s;
+		}
+
+		public GSSContext getContext() {
+			return context;
+		}
+
+		public String getToken() {
+			return token;
+		}
+
+		public String getSpn() {
+			return spn;
+		}
+
+		// for contexts that won't be used after all
+		public void dispose() {
+			try {
+				context.dispose();
+			} catch (GSSException e) {
+				log(2, "Couldn't dispose of context: " + e.getMessage());
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public class TGTExpiredException extends Exception {
+		public TGTExpiredException(String message) {
+			super(message);
+		}
+	}
+
+	// contexts for tokens sent to hosts whose SPN we don't know yet, so that
+	// the SPN that worked can be learnt from the response. Plenty of requests
+	// never get a response back to us, so entries expire after a while and the
+	// least recently used one is evicted once the cache is full, rather than
+	// the cache filling up and silently refusing anything new. Entries are
+	// keyed by a 64-bit hash of the token instead of the (multi-KB) token
+	// itself; the token is still compared on lookup, so a hash collision just
+	// counts as a miss. Contexts are disposed of as they're evicted or expire
+	public class ContextCache {
+		private final int maxCache = 1000;
+		private final long maxMaxAgeMillis = 5 * 60 * 1000; // a response later than this is past the default clock skew anyway
+		private final long responseSlackMillis = 10 * 1000;
+		private volatile long maxAgeMillis = maxMaxAgeMillis;
+		private final Pattern normalTimeoutPattern = Pattern
+				.compile("\"normal_timeout\"\\s*:\\s*(\\d+)");
+		private final LinkedHashMap<Long, CachedContext> contextMap;
+		private volatile int currentlyCached = 0;
+
+		private class CachedContext {
+			private ContextTokenSpnTriple ctst;
+			private long addedAt;
+
+			public CachedContext(ContextTokenSpnTriple c) {
+				ctst = c;
+				addedAt = System.currentTimeMillis();
+			}
+		}
+
+		@SuppressWarnings("serial")
+		public ContextCache() {
+			contextMap = new LinkedHashMap<Long, CachedContext>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<Long, CachedContext> eldest) {
+					if (size() > maxCache) {
+						contextCacheEvictionCount.incrementAndGet();
+						dispose(eldest.getValue());
+						return true;
+					}
+					return false;
+				}
+			};
+
+			updateMaxAge();
+		}
+
+		// no response can arrive later than Burp's own response timeout, so
+		// entries are kept for that long (plus a little), up to the clock
+		// skew limit. A timeout of 0 means Burp waits for ever
+		public void updateMaxAge() {
+			long age = maxMaxAgeMillis;
+
+			try {
+				Matcher m = normalTimeoutPattern.matcher(callbacks
+						.saveConfigAsJson("project_options.connections.timeouts"));
+
+				if (m.find() && Long.parseLong(m.group(1)) > 0) {
+					age = Math.min(maxMaxAgeMillis, Long.parseLong(m.group(1))
+							+ responseSlackMillis);
+				}
+			} catch (Exception e) {
+				log(2, "Couldn't read Burp's response timeout: " + e.getMessage());
+			} catch (AbstractMethodError e) {
+				// older versions of Burp don't have saveConfigAsJson
+				log(2, "Couldn't read Burp's response timeout - Burp version too old");
+			}
+
+			if (age != maxAgeMillis) {
+				log(2, String.format("Keeping contexts for %d seconds",
+						age / 1000));
+				maxAgeMillis = age;
+			}
+		}
+
+		private void dispose(CachedContext cc) {
+			cc.ctst.dispose();
+		}
+
+		// FNV-1a over the characters of the token
+		private long hashToken(String token) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < token.length(); i++) {
+				h ^= token.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			return h;
+		}
+
+		private boolean isExpired(CachedContext cc, long now) {
+			return now - cc.addedAt > maxAgeMillis;
+		}
+
+		// the map is in access order, and a hit moves an entry to the recently
+		// used end however old it is, so the whole map has to be checked -
+		// it's bounded by maxCache, so that's cheap enough
+		private void removeExpired(long now) {
+			Iterator<CachedContext> it = contextMap.values().iterator();
+			while (it.hasNext()) {
+				CachedContext cc = it.next();
+				if (!isExpired(cc, now)) {
+					continue;
+				}
+				it.remove();
+				dispose(cc);
+				contextCacheExpiredCount.incrementAndGet();
+			}
+		}
+
+		public boolean isEmpty() {
+			return currentlyCached == 0;
+		}
+
+		public void AddToCache(ContextTokenSpnTriple ctst) {
+			long key = hashToken(ctst.getToken());
+			synchronized (contextMap) {
+				removeExpired(System.currentTimeMillis());
+				contextMap.put(key, new CachedContext(ctst));
+				currentlyCached = contextMap.size();
+			}
+		}
+
+		public void RemoveFromCache(String token) {
+			// save hashing the token and taking the lock
+			if (currentlyCached == 0 || token == null) {
+				return;
+			}
+
+			long key = hashToken(token);
+			synchronized (contextMap) {
+				CachedContext cc = contextMap.get(key);
+				if (cc != null && cc.ctst.getToken().equals(token)) {
+					contextMap.remove(key);
+					currentlyCached = contextMap.size();
+				}
+			}
+		}
+
+		public ContextTokenSpnTriple GetFromCache(String token) {
+			// save hashing the token and taking the lock
+			if (currentlyCached == 0 || token == null) {
+				return null;
+			}
+
+			long key = hashToken(token);
+			synchronized (contextMap) {
+				CachedContext cc = contextMap.get(key);
+				if (cc == null || !cc.ctst.getToken().equals(token)) {
+					contextCacheMissCount.incrementAndGet();
+					return null;
+				}
+				if (isExpired(cc, System.currentTimeMillis())) {
+					contextMap.remove(key);
+					dispose(cc);
+					currentlyCached = contextMap.size();
+					contextCacheExpiredCount.incrementAndGet();
+					contextCacheMissCount.incrementAndGet();
+					return null;
+				}
+				contextCacheHitCount.incrementAndGet();
+				return cc.ctst;
+			}
+		}
+
+		public int size() {
+			return currentlyCached;
+		}
+	}
+
+	// the KDCs for the current realm, and how quickly each has been answering
+	// on port 88. Java tries the KDCs listed for the realm in krb5.conf in
+	// order, moving on to the next one when a KDC times out, so keeping that
+	// list ordered fastest first, with unreachable ones last, means a slow or
+	// dead DC doesn't hold up authentication
+	private class KdcSelector {
+		public static final long probeIntervalMillis = 30 * 1000;
+		private final int probeTimeoutMillis = 2000;
+		private volatile List<KdcHealth> kdcs = new ArrayList<KdcHealth>(); // replaced, never modified
+		private volatile String appliedOrder = "";
+		private final AtomicBoolean probing = new AtomicBoolean(false);
+
+		private class KdcHealth {
+			private String host;
+			private volatile long rttMillis = -1; // not probed yet
+			private volatile boolean reachable = true;
+
+			public KdcHealth(String h) {
+				host = h;
+			}
+		}
+
+		// the KDC from the domain settings is the only one used until the
+		// others have been found and probed
+		public synchronized void reset(String kdc) {
+			List<KdcHealth> l = new ArrayList<KdcHealth>();
+			l.add(new KdcHealth(kdc));
+			kdcs = l;
+			appliedOrder = kdc;
+			applyKrb5Config();
+			updateKdcHealthDisplay(describe());
+		}
+
+		public List<String> getOrder() {
+			List<String> ret = new ArrayList<String>();
+			for (String kdc : appliedOrder.split(":")) {
+				if (!kdc.isEmpty()) {
+					ret.add(kdc);
+				}
+			}
+			return ret;
+		}
+
+		// picks up the other KDCs from the SRV records first. They're cached,
+		// so this only goes to DNS when the records are due a refresh, and
+		// any KDCs added to the domain since the last probe get included
+		public void startProbe() {
+			if (!masterSwitch || !kdcFailover || domainDnsName.isEmpty()) {
+				return;
+			}
+
+			final String domain = domainDnsName;
+
+			housekeepingExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						addKdcs(srvResolver.getBlocking(domain));
+					} catch (Exception e) {
+						log(2, String.format(
+								"Couldn't look up KDCs for %s in DNS: %s",
+								domain, e.getMessage()));
+					}
+
+					if (kdcs.size() > 1) {
+						probe();
+					}
+				}
+			});
+		}
+
+		private synchronized void addKdcs(List<String> hosts) {
+			List<KdcHealth> l = new ArrayList<KdcHealth>(kdcs);
+
+			for (String host : hosts) {
+				boolean known = false;
+				for (KdcHealth kh : l) {
+					if (kh.host.equalsIgnoreCase(host)) {
+						known = true;
+					}
+				}
+				if (!known) {
+					l.add(new KdcHealth(host));
+				}
+			}
+
+			kdcs = l;
+		}
+
+		private void probe() {
+			if (!probing.compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				for (KdcHealth kh : kdcs) {
+					long start = System.nanoTime();
+					Socket client = new Socket();
+					try {
+						client.connect(new InetSocketAddress(kh.host, 88),
+								probeTimeoutMillis);
+						long rtt = (System.nanoTime() - start) / 1000000;
+						// smooth it out a bit, so one slow connect doesn't
+						// reorder everything
+						kh.rttMillis = (kh.rttMillis < 0) ? rtt
+								: (kh.rttMillis + rtt) / 2;
+						kh.reachable = true;
+					} catch (Exception e) {
+						if (kh.reachable) {
+							log(1, String.format("KDC %s is not reachable: %s",
+									kh.host, e.getMessage()));
+						}
+						kh.reachable = false;
+					} finally {
+						try {
+							client.close();
+						} catch (IOException e) {
+							// nothing to do
+						}
+					}
+				}
+
+				applyOrder();
+			} finally {
+				probing.set(false);
+			}
+		}
+
+		private synchronized void applyOrder() {
+			List<KdcHealth> l = new ArrayList<KdcHealth>(kdcs);
+
+			// stable, so the configured KDC stays first when it's as good as
+			// the others
+			Collections.sort(l, new Comparator<KdcHealth>() {
+				@Override
+				public int compare(KdcHealth a, KdcHealth b) {
+					if (a.reachable != b.reachable) {
+						return a.reachable ? -1 : 1;
+					}
+					long ra = (a.rttMillis < 0) ? Long.MAX_VALUE : a.rttMillis;
+					long rb = (b.rttMillis < 0) ? Long.MAX_VALUE : b.rttMillis;
+					return Long.compare(ra, rb);
+				}
+			});
+
+			kdcs = l;
+
+			List<String> hosts = new ArrayList<String>();
+			for (KdcHealth kh : l) {
+				hosts.add(kh.host);
+			}
+			String order = String.join(":", hosts);
 
-		return false;
-	}
+			if (!order.equals(appliedOrder)) {
+				appliedOrder = order;
+				log(2, "KDC order is now " + order);
+				applyKrb5Config();
+			}
 
-	private void setKrb5Config() {
-		System.setProperty("java.security.krb5.conf", krb5File);
-	}
-	
-	private void clearKerberosState()
-	{
-		clearLoginContext();
-		
-		workingSet = new ArrayList<String>();				
-		hostnameToSpnMap = new HashMap<String, String>();
-		failedSpns = new ArrayList<String>();;
-		failedSpnsForHost = new HashMap<String, List<String>>();
-		hostnamesWithUnknownSpn = new ArrayList<String>();
+			updateKdcHealthDisplay(describe());
+		}
+
+		public int getKdcCount() {
+			return kdcs.size();
+		}
+
+		public String describe() {
+			List<String> parts = new ArrayList<String>();
+
+			for (KdcHealth kh : kdcs) {
+				if (!kh.reachable) {
+					parts.add(kh.host + " (unreachable)");
+				} else if (kh.rttMillis < 0) {
+					parts.add(kh.host + " (not tested)");
+				} else {
+					parts.add(String.format("%s (%d ms)", kh.host, kh.rttMillis));
+				}
+			}
+
+			return String.join(", ", parts);
+		}
 	}
 
-	private void setupLoginContext() {
-		if (loginFailed) {
-			return; // don't keep trying to get a TGT after a failure, until we
-					// are provided with new domain details or creds or whatever
+	// _kerberos._tcp SRV lookups, cached per realm. JNDI doesn't give us the
+	// TTL on the records, so an answer is kept for srvCacheMillis and then
+	// refreshed in the background, with callers getting the previous answer
+	// in the meantime rather than waiting on DNS. Realms with no records are
+	// remembered too, so that the parent-domain realms tried in
+	// hostnameToSpn() don't cost a lookup every time
+	private class SrvResolver {
+		private final long srvCacheMillis = 10 * 60 * 1000;
+		private final long srvErrorRetryMillis = 60 * 1000;
+		private final Map<String, SrvEntry> cache = new ConcurrentHashMap<String, SrvEntry>();
+
+		private class SrvEntry {
+			private volatile List<String> hosts = null; // null until a lookup has succeeded
+			private volatile boolean notFound = false;
+			private volatile long expiresAt = 0;
+			private final AtomicBoolean refreshing = new AtomicBoolean(false);
 		}
 
-		if (domainDnsName.isEmpty()) {
-			alertAndLog(1,
-					"Domain DNS name is blank - not trying to acquire TGT");
-			loginFailed = true;
-			return;
+		private SrvEntry entryFor(String realm) {
+			String key = realm.toLowerCase();
+			SrvEntry e = cache.get(key);
+
+			if (e == null) {
+				cache.putIfAbsent(key, new SrvEntry());
+				e = cache.get(key);
+			}
+
+			return e;
 		}
 
-		if (kdcHost.isEmpty()) {
-			alertAndLog(1, "KDC hostname is blank - not trying to acquire TGT");
-			loginFailed = true;
-			return;
+		// never blocks. Returns whatever is cached, which may be nothing, and
+		// starts a lookup in the background if that's missing or out of date
+		public List<String> get(String realm) {
+			SrvEntry e = entryFor(realm);
+
+			if (System.currentTimeMillis() >= e.expiresAt) {
+				refreshInBackground(realm, e);
+			}
+
+			List<String> hosts = e.hosts;
+			return hosts == null ? new ArrayList<String>() : hosts;
 		}
 
-		if (username.isEmpty()) {
-			alertAndLog(1, "User is blank - not trying to acquire TGT");
-			loginFailed = true;
-			return;
+		// as get(), but waits for the lookup if there's nothing cached yet.
+		// Not for use on the Swing thread
+		public List<String> getBlocking(String realm) throws Exception {
+			SrvEntry e = entryFor(realm);
+
+			if (e.hosts == null) {
+				return lookup(realm, e);
+			}
+
+			return get(realm);
 		}
 
-		setKrb5Config();
+		// goes to DNS regardless of what's cached, for when the user has
+		// asked for the KDCs to be looked up
+		public List<String> refresh(String realm) throws Exception {
+			return lookup(realm, entryFor(realm));
+		}
 
-		setupKerberosConfig();
+		public boolean hasRecords(String realm) {
+			return !get(realm).isEmpty();
+		}
+
+		public boolean isKnownAbsent(String realm) {
+			SrvEntry e = cache.get(realm.toLowerCase());
+			return e != null && e.notFound;
+		}
 
-		synchronized (contextLock) {
+		private List<String> lookup(String realm, SrvEntry e) throws Exception {
 			try {
-				log(2,
-						String.format(
-								"Attempting to acquire TGT for realm %s at KDC %s with user %s",
-								getRealmName(), kdcHost, username));
-				loginContext = new LoginContext("KrbLogin",
-						new KerberosCallBackHandler(username, password));
-				loginContext.login();
-				log(2, "TGT successfully acquired");
-				gotTGT = true;
+				List<String> hosts = lookupKdcsFromDns(realm);
+				e.hosts = hosts;
+				e.notFound = hosts.isEmpty();
+				e.expiresAt = System.currentTimeMillis() + srvCacheMillis;
+				return hosts;
+			} catch (NameNotFoundException nnfe) {
+				e.hosts = new ArrayList<String>();
+				e.notFound = true;
+				e.expiresAt = System.currentTimeMillis() + srvCacheMillis;
+				throw nnfe;
+			} catch (Exception ex) {
+				// keep whatever we had, but try again sooner than usual
+				e.expiresAt = System.currentTimeMillis() + srvErrorRetryMillis;
+				throw ex;
+			}
+		}
 
-				boolean forwardable = checkTgtForwardableFlag(loginContext
-						.getSubject());
+		private void refreshInBackground(final String realm, final SrvEntry e) {
+			if (!e.refreshing.compareAndSet(false, true)) {
+				return;
+			}
 
-				if (forwardable) {
-					log(1, "TGT is forwardable - delegation should work OK");
-				} else {
-					log(1,
-							"TGT is not forwardable so delegation will not work.");
-				}
-			} catch (Exception e) {
-				if ((e.getCause() != null)
-						&& (e.getCause().getClass().getName() == "java.net.UnknownHostException")) {
-					alertAndLog(
-							1,
-							String.format(
-									"Failed to acquire TGT on domain %s with user %s - couldn't find DC %s. Not making further attempts until domain settings are changed.",
-									domainDnsName, username, kdcHost));
-				} else if (e.getMessage().startsWith(
-						"Client not found in Kerberos database")) {
-					alertAndLog(
-							1,
-							String.format(
-									"Failed to acquire TGT on domain %s with user %s - username appears to be invalid. Not making further attempts, to avoid account lockout. Try setting new credentials (and checking the domain details)",
-									domainDnsName, username));
-					// incorrectCreds = true;
-				} else if (e.getMessage().startsWith(
-						"Pre-authentication information was invalid")) {
-					if (password.isEmpty()) {
-						alertAndLog(
-								1,
-								String.format(
-										"Failed to acquire TGT on domain %s with user %s - password appears to be invalid (it is blank). Not making further attempts, to avoid account lockout. Try setting new credentials (and checking the domain details)",
-										domainDnsName, username));
-						// incorrectCreds = true;
-					} else {
-						alertAndLog(
-								1,
-								String.format(
-										"Failed to acquire TGT on domain %s with user %s - password appears to be invalid. Not making further attempts, to avoid account lockout. Try setting new credentials (and checking the domain details)",
-										domainDnsName, username));
-						// incorrectCreds = true;
-					}
-				} else if( e.getMessage().startsWith( "KDC has no support for encryption type"))
-				{
-					if( unlimitedJCE)
-					{
-						alertAndLog( 1, "Failed to acquire TGT - encryption algorithm not supported by KDC. This is unexpected, as you appear to have the JCE Unlimited Strength Jurisdiction Policy installed.");
-					}
-					else
-					{
-						alertAndLog( 1, "Failed to acquire TGT - encryption algorithm not supported by KDC. This is likely to be because you do not have the JCE Unlimited Strength Jurisdiction Policy installed. See http://docs.oracle.com/javase/7/docs/technotes/guides/security/SunProviders.html#importlimits. Also note that newer versions of Burp seem to have a workaround for this.");
+			housekeepingExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						List<String> hosts = lookup(realm, e);
+						log(2, String.format("SRV records for %s: %s",
+								realm, hosts.isEmpty() ? "none" : String.join(", ", hosts)));
+					} catch (NameNotFoundException nnfe) {
+						log(2, "No SRV records for " + realm);
+					} catch (Exception ex) {
+						log(2, String.format("Couldn't look up SRV records for %s: %s",
+								realm, ex.getMessage()));
+					} finally {
+						e.refreshing.set(false);
 					}
-				} else {
-					alertAndLog(
-							1,
-							String.format(
-									"Failed to acquire TGT on domain %s with user %s. Not making further attempts until domain settings are changed. Error was: %s",
-									domainDnsName, username, e.getMessage()));
-					logException(2, e);
 				}
+			});
+		}
+	}
 
-				loginFailed = true;
-			}
+	// Java only reads krb5.conf when its Kerberos config is refreshed, which
+	// otherwise won't happen until the next login (through the
+	// refreshKrb5Config login option, which is public but only applies to a
+	// login). There's no public way of doing it straight away, so this only
+	// works where the internal class is accessible (it is on Java 8), and
+	// it's only an optimisation - if it fails nothing is lost but time
+	private boolean refreshJavaKerberosConfig() {
+		try {
+			Class.forName("sun.security.krb5.Config").getMethod("refresh")
+					.invoke(null);
+			return true;
+		} catch (Exception e) {
+			log(2, "Couldn't refresh Kerberos config, changes will take effect at next login: "
+					+ e);
+			return false;
 		}
 	}
 
-	class KerberosCallBackHandler implements CallbackHandler {
+	private void updateKdcHealthDisplay(final String health) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (kdcHealthTextField != null) {
+					kdcHealthTextField.setText(health);
+				}
+			}
+		});
+	}
 
-		private final String user;
-		private final String password;
+	// the TGT and service tickets are written to disk, so that after Burp is
+	// restarted or the extension reloaded we can carry on using them until
+	// they expire, rather than starting again with an AS exchange and a TGS
+	// exchange for every host. This also gets us through short KDC outages.
+	// The file is encrypted and authenticated with AES-GCM, using a random
+	// key kept in the extension settings, so it's only as readable as a saved
+	// password would be, and it can't be tampered with before we deserialize
+	// it
+	private class TicketStore {
+		private final String version = "1";
+		private final long minRemainingMillis = 5 * 60 * 1000;
+		private String lastSaved = null;
+
+		private File getFile() {
+			return new File(new File(System.getProperty("user.home"),
+					".berserko"), "tickets.bin");
+		}
 
-		public KerberosCallBackHandler(String user, String password) {
-			this.user = user;
-			this.password = password;
+		public boolean exists() {
+			return getFile().exists();
 		}
 
-		public void handle(Callback[] callbacks) throws IOException,
-				UnsupportedCallbackException {
+		private SecretKeySpec getKey() {
+			String key = loadSetting("ticket_store_key");
 
-			for (Callback callback : callbacks) {
+			if (key == null) {
+				byte[] keyBytes = new byte[16];
+				new SecureRandom().nextBytes(keyBytes);
+				key = Base64.getEncoder().encodeToString(keyBytes);
+				saveSetting("ticket_store_key", key);
+			}
 
-				if (callback instanceof NameCallback) {
-					NameCallback nc = (NameCallback) callback;
-					if (user == null) {
-						nc.setName(usernameToPrincipal("berserkotest"));
-					} else {
-						nc.setName(usernameToPrincipal(user));
-					}
-				} else if (callback instanceof PasswordCallback) {
-					PasswordCallback pc = (PasswordCallback) callback;
-					if (user == null) {
-						pc.setPassword("berserkotest".toCharArray());
-					} else {
-						pc.setPassword(password.toCharArray());
+			return new SecretKeySpec(Base64.getDecoder().decode(key), "AES");
+		}
+
+		public synchronized void save(Subject sub, String principal) {
+			long now = System.currentTimeMillis();
+			ArrayList<KerberosTicket> tickets = new ArrayList<KerberosTicket>();
+			StringBuilder contents = new StringBuilder(principal);
+
+			for (KerberosTicket kt : sub
+					.getPrivateCredentials(KerberosTicket.class)) {
+				if (!kt.isDestroyed() && kt.getEndTime() != null
+						&& kt.getEndTime().getTime() > now) {
+					tickets.add(kt);
+					contents.append(" ").append(kt.getServer().getName())
+							.append("/").append(kt.getEndTime().getTime());
+				}
+			}
+
+			// nothing new since last time
+			if (contents.toString().equals(lastSaved)) {
+				return;
+			}
+
+			try {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bos);
+				oos.writeUTF(version);
+				oos.writeUTF(principal);
+				oos.writeObject(tickets);
+				oos.close();
+
+				byte[] iv = new byte[12];
+				new SecureRandom().nextBytes(iv);
+				Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				cipher.init(Cipher.ENCRYPT_MODE, getKey(),
+						new GCMParameterSpec(128, iv));
+				cipher.updateAAD(principal.getBytes(StandardCharsets.UTF_8));
+				byte[] encrypted = cipher.doFinal(bos.toByteArray());
+
+				File file = getFile();
+				File dir = file.getParentFile();
+				dir.mkdirs();
+				dir.setReadable(false, false);
+				dir.setReadable(true, true);
+				dir.setExecutable(false, false);
+				dir.setExecutable(true, true);
+
+				Path tmp = createPrivateTempFile(dir.toPath());
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				out.write(iv);
+				out.write(encrypted);
+				Files.write(tmp, out.toByteArray());
+				Files.move(tmp, file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+
+				lastSaved = contents.toString();
+				log(2, String.format("Saved %d tickets to %s", tickets.size(),
+						file.getPath()));
+			} catch (Exception e) {
+				log(1, "Failed to save tickets: " + e.getMessage());
+				logException(2, e);
+			}
+		}
+
+		// created readable only by us, rather than being chmodded once it
+		// already exists. Where there are no POSIX permissions (Windows),
+		// the file gets the permissions of the directory it's in
+		private Path createPrivateTempFile(Path dir) throws IOException {
+			try {
+				return Files.createTempFile(dir, "tickets", ".tmp",
+						PosixFilePermissions.asFileAttribute(EnumSet.of(
+								PosixFilePermission.OWNER_READ,
+								PosixFilePermission.OWNER_WRITE)));
+			} catch (UnsupportedOperationException e) {
+				return Files.createTempFile(dir, "tickets", ".tmp");
+			}
+		}
+
+		// returns null unless there's a TGT for this principal with a
+		// reasonable amount of life left in it
+		@SuppressWarnings("unchecked")
+		public synchronized Subject load(String principal) {
+			File file = getFile();
+
+			if (!file.exists()) {
+				return null;
+			}
+
+			try {
+				byte[] data = Files.readAllBytes(file.toPath());
+
+				Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				cipher.init(Cipher.DECRYPT_MODE, getKey(),
+						new GCMParameterSpec(128, data, 0, 12));
+				cipher.updateAAD(principal.getBytes(StandardCharsets.UTF_8));
+				byte[] decrypted = cipher.doFinal(data, 12, data.length - 12);
+
+				ObjectInputStream ois = new ObjectInputStream(
+						new ByteArrayInputStream(decrypted));
+
+				if (!ois.readUTF().equals(version)
+						|| !ois.readUTF().equals(principal)) {
+					return null;
+				}
+
+				List<KerberosTicket> tickets = (List<KerberosTicket>) ois
+						.readObject();
+				ois.close();
+
+				long now = System.currentTimeMillis();
+				Subject sub = new Subject();
+				sub.getPrincipals().add(new KerberosPrincipal(principal));
+
+				for (KerberosTicket kt : tickets) {
+					if (kt.getEndTime().getTime() - now > minRemainingMillis) {
+						sub.getPrivateCredentials().add(kt);
 					}
-				} else {
-					throw new UnsupportedCallbackException(callback,
-							"Unknown Callback");
 				}
 
+				if (getTgt(sub) == null) {
+					log(2, "No usable TGT in ticket store");
+					return null;
+				}
+
+				log(1, String.format("Loaded %d tickets from %s", sub
+						.getPrivateCredentials().size(), file.getPath()));
+				return sub;
+			} catch (Exception e) {
+				// most likely it was written for another principal, or with a
+				// key that has since been lost
+				log(2, "Couldn't load tickets from ticket store: "
+						+ e.getMessage());
+				return null;
+			}
+		}
+
+		public synchronized void delete() {
+			if (getFile().delete()) {
+				log(2, "Deleted ticket store");
 			}
+			lastSaved = null;
 		}
 	}
 
-	private class ContextTokenSpnTriple {
-		private GSSContext context;
-		private String token;
-		private String spn;
+	// SPNs the KDC wouldn't give us a ticket for. Used to be a list that only
+	// ever grew, so an SPN that failed once because the KDC had a wobble was
+	// never tried again. Now each entry expires, after a long time if the KDC
+	// told us it didn't know the SPN, or after a short time otherwise. Also
+	// used for the SPNs each host has rejected, keyed by failedSpnForHostKey
+	private class FailedSpnCache {
+		private final int maxEntries = 10000;
+		// in the order they were added (re-adding moves an entry to the end),
+		// so when full the one added longest ago goes, without a scan
+		@SuppressWarnings("serial")
+		private final LinkedHashMap<String, FailedSpn> entries = new LinkedHashMap<String, FailedSpn>() {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, FailedSpn> eldest) {
+				return size() > maxEntries;
+			}
+		};
 
-		public ContextTokenSpnTriple(GSSContext c, String s, String t) {
-			context = c;
-			token = t;
-			spn = s;
+		private class FailedSpn {
+			private SpnFailureReason reason;
+			private long expiresAt;
+
+			public FailedSpn(SpnFailureReason r, long e) {
+				reason = r;
+				expiresAt = e;
+			}
 		}
 
-		public GSSContext getContext() {
-			return context;
+		public synchronized boolean contains(String spn) {
+			FailedSpn fs = entries.get(spn);
+
+			if (fs == null) {
+				return false;
+			}
+
+			if (System.currentTimeMillis() >= fs.expiresAt) {
+				entries.remove(spn);
+				log(2, String.format("Failed SPN %s has expired, will try it again", spn));
+				return false;
+			}
+
+			return true;
 		}
 
-		public String getToken() {
-			return token;
+		public void add(String spn, SpnFailureReason reason) {
+			add(spn, reason, System.currentTimeMillis() + reason.ttlMillis);
 		}
 
-		public String getSpn() {
-			return spn;
+		public synchronized void add(String spn, SpnFailureReason reason,
+				long expiresAt) {
+			if (expiresAt <= System.currentTimeMillis()) {
+				return;
+			}
+
+			entries.remove(spn);
+			entries.put(spn, new FailedSpn(reason, expiresAt));
 		}
-	}
 
-	@SuppressWarnings("serial")
-	public class TGTExpiredException extends Exception {
-		public TGTExpiredException(String message) {
-			super(message);
+		// key -> expiry time, for saving
+		public synchronized Map<String, Long> unexpired() {
+			long now = System.currentTimeMillis();
+			Map<String, Long> ret = new HashMap<String, Long>();
+
+			for (Map.Entry<String, FailedSpn> entry : entries.entrySet()) {
+				if (entry.getValue().expiresAt > now) {
+					ret.put(entry.getKey(), entry.getValue().expiresAt);
+				}
+			}
+
+			return ret;
+		}
+
+		public synchronized String describe() {
+			long now = System.currentTimeMillis();
+			List<String> lines = new ArrayList<String>();
+
+			for (Map.Entry<String, FailedSpn> entry : entries.entrySet()) {
+				long remaining = entry.getValue().expiresAt - now;
+				if (remaining > 0) {
+					lines.add(String.format("%s (%s, retried in %ds)",
+							entry.getKey(), entry.getValue().reason,
+							(remaining + 999) / 1000));
+				}
+			}
+
+			Collections.sort(lines);
+			return String.join("\n", lines);
 		}
 	}
 
-	public class ContextCache {
-		private Map<String, ContextTokenSpnTriple> contextMap;
-		private final int maxCache = 1000;
-		private int currentlyCached = 0;
+	// with the proactive strategy, every request needs a brand new token, and
+	// building one (createContext + initSecContext) on the Burp thread holds
+	// up the request. So for hosts we are sending requests to, keep a few
+	// ready-made tokens that the request thread can just take
+	private class TokenPool {
+		public static final long refillIntervalMillis = 1000;
+		private final long maxTokenAgeMillis = 60 * 1000; // well inside the default 5 minute clock skew
+		private final long maxIdleMillis = 5 * 60 * 1000;
+		private Map<String, HostTokens> pools = new ConcurrentHashMap<String, HostTokens>();
+		// bumped by clear(), so that tokens from a refill that was already
+		// running (and so maybe using the previous Subject) are never handed out
+		private final AtomicLong generation = new AtomicLong(0);
+		private final AtomicBoolean refilling = new AtomicBoolean(false);
+
+		private class PooledToken {
+			private ContextTokenSpnTriple ctst;
+			private long mintedAt;
+			private long mintedInGeneration;
+
+			public PooledToken(ContextTokenSpnTriple c, long g) {
+				ctst = c;
+				mintedAt = System.currentTimeMillis();
+				mintedInGeneration = g;
+			}
+		}
 
-		public ContextCache() {
-			currentlyCached = 0;
-			contextMap = new ConcurrentHashMap<String, BurpExtender.ContextTokenSpnTriple>();
+		private class HostTokens {
+			private String hostname;
+			private int port;
+			private ConcurrentLinkedDeque<PooledToken> tokens = new ConcurrentLinkedDeque<PooledToken>();
+			private AtomicInteger requestsSinceRefill = new AtomicInteger(0);
+			private double requestsPerInterval = 0.0;
+			private volatile long lastUsed = System.currentTimeMillis();
+
+			public HostTokens(String h, int p) {
+				hostname = h;
+				port = p;
+			}
 		}
 
-		public boolean isEmpty() {
-			return currentlyCached == 0;
+		public ContextTokenSpnTriple take(String hostname, int port) {
+			if (tokenPoolDepth == 0) {
+				return null;
+			}
+
+			String key = hostnameColonPort(hostname, port).toLowerCase();
+			HostTokens ht = pools.get(key);
+
+			if (ht == null) {
+				HostTokens created = new HostTokens(hostname, port);
+				ht = pools.putIfAbsent(key, created);
+				if (ht == null) {
+					ht = created;
+				}
+			}
+
+			ht.requestsSinceRefill.incrementAndGet();
+			ht.lastUsed = System.currentTimeMillis();
+
+			PooledToken pt;
+			while ((pt = ht.tokens.pollFirst()) != null) {
+				if (pt.mintedInGeneration == generation.get()
+						&& System.currentTimeMillis() - pt.mintedAt < maxTokenAgeMillis) {
+					return pt.ctst;
+				}
+
+				pt.ctst.dispose();
+			}
+
+			return null;
 		}
 
-		public void AddToCache(ContextTokenSpnTriple ctst) {
-			if (currentlyCached < maxCache) {
-				// log( 2, String.format(
-				// "ContextCache putting %s %s, contains %d", ctst.getToken(),
-				// ctst.getSpn(), currentlyCached+1));
-				contextMap.put(ctst.getToken(), ctst);
-				currentlyCached += 1;
+		// getting tokens means waiting on service tickets, so the refill is
+		// done on housekeepingExecutor rather than holding up
+		// backgroundExecutor, and only one runs at a time. It mustn't be on
+		// ticketExecutor, where it would take up a thread waiting for its own
+		// ticket requests to get one
+		public void startRefill() {
+			if (!refilling.compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				housekeepingExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refill();
+						} catch (Exception e) {
+							log(1, "Exception refilling token pool: " + e.getMessage());
+							logException(2, e);
+						} finally {
+							refilling.set(false);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				refilling.set(false); // being unloaded
 			}
 		}
 
-		public void RemoveFromCache(String token) {
-			// save a lookup in the synchronised hashmap
-			if (currentlyCached == 0) {
+		private void refill() {
+			if (!masterSwitch || authStrategy != AuthStrategy.PROACTIVE
+					|| tokenPoolDepth == 0) {
+				clear();
 				return;
 			}
 
-			if (contextMap.containsKey(token)) {
-				// log( 2, String.format(
-				// "ContextCache removing %s, contains %d", token,
-				// currentlyCached-1));
-				contextMap.remove(token);
-				currentlyCached -= 1;
+			if (!gotTGT) {
+				return; // getting one is the request threads' job
+			}
+
+			long startGeneration = generation.get();
+			long now = System.currentTimeMillis();
+
+			for (Map.Entry<String, HostTokens> entry : pools.entrySet()) {
+				HostTokens ht = entry.getValue();
+
+				if (generation.get() != startGeneration) {
+					return; // cleared since we started
+				}
+
+				if (now - ht.lastUsed > maxIdleMillis) {
+					pools.remove(entry.getKey());
+					disposeAll(ht);
+					continue;
+				}
+
+				PooledToken expired;
+				while ((expired = ht.tokens.peekFirst()) != null
+						&& now - expired.mintedAt >= maxTokenAgeMillis) {
+					if (ht.tokens.remove(expired)) {
+						expired.ctst.dispose();
+					}
+				}
+
+				// aim to hold about two intervals' worth of requests, based on
+				// a moving average of the request rate
+				ht.requestsPerInterval = (ht.requestsPerInterval + ht.requestsSinceRefill
+						.getAndSet(0)) / 2.0;
+				int target = Math.min(tokenPoolDepth,
+						(int) Math.ceil(ht.requestsPerInterval * 2.0));
+
+				while (ht.tokens.size() < target) {
+					ContextTokenSpnTriple ctst = getToken(ht.hostname, ht.port);
+
+					if (ctst == null) {
+						break;
+					}
+
+					ht.tokens.addLast(new PooledToken(ctst, startGeneration));
+
+					// if clear() ran meanwhile, it may have missed that one
+					if (generation.get() != startGeneration) {
+						disposeAll(ht);
+						break;
+					}
+				}
 			}
 		}
 
-		public ContextTokenSpnTriple GetFromCache(String token) {
-			// save a lookup in the synchronised hashmap
-			if (currentlyCached == 0) {
-				return null;
+		// the contexts of tokens that won't be handed out any more
+		private void disposeAll(HostTokens ht) {
+			PooledToken pt;
+			while ((pt = ht.tokens.pollFirst()) != null) {
+				pt.ctst.dispose();
 			}
+		}
 
-			if (contextMap.containsKey(token)) {
-				return contextMap.get(token);
-			} else {
-				return null;
+		public void clear() {
+			generation.incrementAndGet();
+
+			Iterator<HostTokens> it = pools.values().iterator();
+			while (it.hasNext()) {
+				HostTokens ht = it.next();
+				it.remove();
+				disposeAll(ht);
 			}
 		}
 	}
@@ -1749,6 +4733,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	JPanel authenticationStrategyPanel;
 	JPanel scopePanel;
 	JPanel loggingPanel;
+	JPanel performancePanel;
 	JPanel delegationPanel;
 	JPanel dummyPanel;
 	
@@ -1765,6 +4750,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	// JButton domainDnsNameAutoButton;
 	JButton kdcAutoButton;
 	JTextField domainStatusTextField;
+	JLabel kdcHealthLabel;
+	JTextField kdcHealthTextField;
 	
 	// credentials
 	JLabel usernameLabel;
@@ -1779,6 +4766,13 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	JButton credentialControlsHelpButton;
 	JButton savePasswordHelpButton;
 	JTextField credentialsStatusTextField;
+	JLabel tgtStatusLabel;
+	JTextField tgtStatusTextField;
+	JLabel loginSourceLabel;
+	JComboBox<String> loginSourceComboBox;
+	JTextField loginSourceFileTextField;
+	JButton loginSourceFileButton;
+	JButton loginSourceHelpButton;
 	
 	// delegation
 	JButton checkDelegationConfigButton;
@@ -1789,6 +4783,12 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	JButton checkCurrentKrb5ConfigHelpButton;
 	JButton delegationControlsHelpButton;
 	JButton krb5FileHelpButton;
+	JLabel kdcTransportLabel;
+	JTextField kdcTransportTextField;
+	JLabel realmTableLabel;
+	JTextField realmTableTextField;
+	JButton editRealmTableButton;
+	JButton realmTableHelpButton;
 	
 	// strategy
 	JRadioButton proactiveButton;
@@ -1819,6 +4819,40 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	JButton alertLevelHelpButton;
 	JButton loggingLevelHelpButton;
 
+	// performance
+	JLabel tokenPoolDepthLabel;
+	JComboBox<String> tokenPoolDepthComboBox;
+	JButton tokenPoolDepthHelpButton;
+	JLabel tgtRenewalPercentLabel;
+	JComboBox<String> tgtRenewalPercentComboBox;
+	JButton tgtRenewalPercentHelpButton;
+	JLabel tgtWaitSecondsLabel;
+	JComboBox<String> tgtWaitSecondsComboBox;
+	JButton tgtWaitSecondsHelpButton;
+	JLabel ticketBudgetLabel;
+	JComboBox<String> ticketBudgetComboBox;
+	JButton ticketBudgetHelpButton;
+	JLabel spnProbeFanOutLabel;
+	JComboBox<String> spnProbeFanOutComboBox;
+	JButton spnProbeFanOutHelpButton;
+	JCheckBox persistTicketsCheckBox;
+	JButton persistTicketsHelpButton;
+	JCheckBox kdcFailoverCheckBox;
+	JButton kdcFailoverHelpButton;
+	JCheckBox kdcTcpOnlyCheckBox;
+	JButton kdcTcpOnlyHelpButton;
+	JLabel kdcTimeoutLabel;
+	JComboBox<String> kdcTimeoutComboBox;
+	JButton kdcTimeoutHelpButton;
+	JLabel kdcMaxRetriesLabel;
+	JComboBox<String> kdcMaxRetriesComboBox;
+	JButton kdcMaxRetriesHelpButton;
+	JLabel kdcBudgetLabel;
+	JComboBox<String> kdcBudgetComboBox;
+	JButton kdcBudgetHelpButton;
+	JButton statisticsButton;
+	JButton failedSpnsButton;
+
 	// domain settings
 	private final String domainDnsNameHelpString = "DNS name of the domain to authenticate against - not the NETBIOS name.";
 	private final String kdcHelpString = "Hostname of a KDC (domain controller) for this domain.";
@@ -1829,6 +4863,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	private final String usernameHelpString = "Username for a domain account. Just the plain username, not DOMAIN\\username or username@DOMAIN.COM or anything like that.";
 	private final String credentialsTestSuccessString = "TGT successfully acquired.";
 	private final String savePasswordHelpString = "Controls whether the password will be saved in Burp's settings file.";
+	private final String realmTableHelpString = "Kerberos realms other than the one in the Domain Settings (for example ones reached through domain trusts), and the KDCs for each, separated by spaces or commas. If no KDCs are given for a realm, Java looks them up in DNS.\n\nEnctypes, if given, are Kerberos encryption type names separated by spaces (e.g. aes256-cts aes128-cts). Java only has one list for all realms, so service tickets can use any of the enctypes given for any realm. Enctypes given for the realm in the Domain Settings are also used for the TGT.\n\nBerserko writes these into the krb5.conf file that Java uses (in .berserko in your home directory), along with the settings from the krb5.conf file above, so there's no need to add [realms] or [domain_realm] sections to that file by hand.";
+	private final String loginSourceHelpString = "Where the TGT comes from.\n\n\"Password\" logs in with the username and password above.\n\n\"Keytab\" logs in with the key for the username above from the chosen keytab file, so no password is needed.\n\n\"Ticket cache\" uses the TGT for the username above from an existing credentials cache (e.g. one created by kinit) - leave the file blank for the default location.\n\nWith a keytab or ticket cache, getting a new TGT doesn't need the password either.";
 	private final String passwordHelpString = "The domain password for the specified user.";
 	
 	private final String credentialControlsHelpString = "\"Change...\" lets you change the Username and Password.\n\n\"Test credentials\" will check that a ticket-granting ticket (TGT) can be acquired using these credentials.";
@@ -1849,6 +4885,19 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	// logging
 	private final String alertLevelHelpString = "Controls level of logging performed to Burp's Alerts tab.";
 	private final String loggingLevelHelpString = "Controls level of logging performed to extension's standard output.";
+
+	// performance
+	private final String tokenPoolDepthHelpString = "With the Proactive strategy, Berserko can create Kerberos tokens in the background so that requests don't have to wait for one to be built.\n\nThis is the maximum number of ready-made tokens kept for each host. The number actually kept depends on how fast requests are being sent to the host.\nTokens are discarded after 60 seconds if they haven't been used.\n\nSet to 0 to disable.";
+	private final String tgtWaitSecondsHelpString = "Berserko starts getting a TGT in the background as soon as Kerberos authentication is enabled and the domain settings and credentials are set.\n\nThis is the longest time a request will wait for that to finish. If there is still no TGT after this, the request is sent without Kerberos authentication.";
+	private final String ticketBudgetHelpString = "The longest time a request will wait for Berserko to get a service ticket from the KDC (0 means no limit).\n\nIf the KDC takes longer than this, the request is sent without Kerberos authentication, but Berserko carries on waiting for the ticket in the background so that later requests can use it.\n\n\"Statistics...\" shows how many requests have gone over this limit.";
+	private final String spnProbeFanOutHelpString = "When Berserko doesn't yet know the SPN for a host, it has to ask the KDC for service tickets for each of the possible SPNs until one works. This is how many of them to ask about at once (1 means one after another).\n\nThe first SPN that works, in the usual order of preference, is used for that host from then on.";
+	private final String persistTicketsHelpString = "If this is selected, the TGT and service tickets are saved to a file in the .berserko directory in your home directory, and used again after Burp is restarted or the extension is reloaded, until they expire. This saves going back to the KDC for every host each time, and means Berserko can carry on working if the KDC is briefly unavailable.\n\nThe file is encrypted with a key kept in Burp's extension settings. It is deleted if this option is turned off, the credentials are changed, or \"Clear Kerberos State\" is used.";
+	private final String kdcFailoverHelpString = "If this is selected, Berserko looks up all the KDCs for the domain in DNS, and uses them as well as the KDC in the Domain Settings. How quickly each one responds on port 88 is checked every 30 seconds, and they are tried fastest first, so if one becomes slow or goes down, authentication carries on using the others.\n\nThe results are shown in \"KDC health\" in the Domain Settings panel.";
+	private final String kdcTcpOnlyHelpString = "Java normally tries UDP first when talking to a KDC. Tickets in Active Directory are usually too big for UDP, so the KDC tells it to try again over TCP, which wastes a round trip on every request to the KDC. Selecting this makes Java use TCP straight away.";
+	private final String kdcTimeoutHelpString = "How long to wait for a KDC to respond before trying again, or moving on to the next KDC. Java's default is 30 seconds.";
+	private final String kdcMaxRetriesHelpString = "How many times to try each KDC before moving on to the next one. Java's default is 3.";
+	private final String kdcBudgetHelpString = "The longest a request to the KDCs should take if none of them respond. If the timeout and number of tries per KDC would add up to more than this across all the KDCs in use, the number of tries (and, if necessary, the timeout) is reduced to fit.\n\nThe values actually in use are shown in the Delegation panel.";
+	private final String tgtRenewalPercentHelpString = "Berserko gets a new TGT in the background once this much of the current TGT's lifetime has passed, so that requests don't have to wait while it is replaced.\n\nThe TGT is renewed if the KDC allows that, otherwise Berserko logs in again.";
 	
 	@Override
 	public Component getUiComponent() {
@@ -1868,6 +4917,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		{
 			hostsInScope.add( scopeListBox.getModel().getElementAt(ii));
 		}
+		scopeMatcher = new ScopeMatcher(hostsInScope);
+		scopeCache.invalidate();
 	}
 
 	private void setupGUI() {
@@ -1909,6 +4960,9 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				kdcHelpButton = new JButton("?");
 				domainControlsHelpButton = new JButton("?");
 				kdcAutoButton = new JButton("Autolocate KDC");
+				kdcHealthLabel = new JLabel("KDC health");
+				kdcHealthTextField = new JTextField();
+				kdcHealthTextField.setEditable(false);
 
 				usernameLabel = new JLabel("Username               ");
 				passwordLabel = new JLabel("Password               ");
@@ -1923,8 +4977,18 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						"Save password in Burp config?");
 				credentialsStatusTextField = new JTextField();
 				credentialsStatusTextField.setEditable(false);
+				tgtStatusLabel = new JLabel("TGT status");
+				tgtStatusTextField = new JTextField();
+				tgtStatusTextField.setEditable(false);
 				credentialControlsHelpButton = new JButton("?");
 				savePasswordHelpButton = new JButton("?");
+				loginSourceLabel = new JLabel("Login using");
+				String[] loginSourceStrings = { "Password", "Keytab", "Ticket cache" };
+				loginSourceComboBox = new JComboBox<String>(loginSourceStrings);
+				loginSourceFileTextField = new JTextField();
+				loginSourceFileTextField.setEditable(false);
+				loginSourceFileButton = new JButton("Choose file...");
+				loginSourceHelpButton = new JButton("?");
 				passwordHelpButton = new JButton("?");
 
 				alertLevelLabel = new JLabel("Alert Level            ");
@@ -1935,6 +4999,50 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				alertLevelHelpButton = new JButton("?");
 				loggingLevelHelpButton = new JButton("?");
 
+				tokenPoolDepthLabel = new JLabel("Token pool depth (proactive)");
+				String[] tokenPoolDepthStrings = { "0", "1", "2", "4", "8", "16" };
+				tokenPoolDepthComboBox = new JComboBox<String>(tokenPoolDepthStrings);
+				tokenPoolDepthHelpButton = new JButton("?");
+				tgtRenewalPercentLabel = new JLabel("TGT renewal point (% of lifetime)");
+				String[] tgtRenewalPercentStrings = { "50", "75", "90" };
+				tgtRenewalPercentComboBox = new JComboBox<String>(tgtRenewalPercentStrings);
+				tgtRenewalPercentHelpButton = new JButton("?");
+				tgtWaitSecondsLabel = new JLabel("Max wait for TGT (seconds)");
+				String[] tgtWaitSecondsStrings = { "0", "2", "5", "10", "30" };
+				tgtWaitSecondsComboBox = new JComboBox<String>(tgtWaitSecondsStrings);
+				tgtWaitSecondsHelpButton = new JButton("?");
+				ticketBudgetLabel = new JLabel("Max wait for service ticket (ms)");
+				String[] ticketBudgetStrings = { "0", "500", "1000", "2000", "5000", "10000" };
+				ticketBudgetComboBox = new JComboBox<String>(ticketBudgetStrings);
+				ticketBudgetHelpButton = new JButton("?");
+				spnProbeFanOutLabel = new JLabel("SPNs to probe at once");
+				String[] spnProbeFanOutStrings = { "1", "2", "4", "8" };
+				spnProbeFanOutComboBox = new JComboBox<String>(spnProbeFanOutStrings);
+				spnProbeFanOutHelpButton = new JButton("?");
+				persistTicketsCheckBox = new JCheckBox(
+						"Keep tickets across restarts (encrypted on disk)");
+				persistTicketsHelpButton = new JButton("?");
+				kdcFailoverCheckBox = new JCheckBox(
+						"Use all KDCs found in DNS, fastest first");
+				kdcFailoverHelpButton = new JButton("?");
+				kdcTcpOnlyCheckBox = new JCheckBox(
+						"Always use TCP to talk to KDCs");
+				kdcTcpOnlyHelpButton = new JButton("?");
+				kdcTimeoutLabel = new JLabel("KDC timeout (ms)");
+				String[] kdcTimeoutStrings = { "1000", "2000", "3000", "5000", "10000", "30000" };
+				kdcTimeoutComboBox = new JComboBox<String>(kdcTimeoutStrings);
+				kdcTimeoutHelpButton = new JButton("?");
+				kdcMaxRetriesLabel = new JLabel("Tries per KDC");
+				String[] kdcMaxRetriesStrings = { "1", "2", "3" };
+				kdcMaxRetriesComboBox = new JComboBox<String>(kdcMaxRetriesStrings);
+				kdcMaxRetriesHelpButton = new JButton("?");
+				kdcBudgetLabel = new JLabel("Max time for all KDCs (seconds)");
+				String[] kdcBudgetStrings = { "5", "10", "15", "30", "60", "90" };
+				kdcBudgetComboBox = new JComboBox<String>(kdcBudgetStrings);
+				kdcBudgetHelpButton = new JButton("?");
+				statisticsButton = new JButton("Statistics...");
+				failedSpnsButton = new JButton("Failed SPNs...");
+
 				proactiveButton = new JRadioButton(
 						"Proactive Kerberos authentication");
 				proactiveAfter401Button = new JRadioButton(
@@ -1972,6 +5080,14 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						"Check current config");
 				createKrb5ConfButton = new JButton("Create krb5.conf file");
 				krb5FileLabel = new JLabel("krb5.conf file           ");
+				kdcTransportLabel = new JLabel("KDC transport");
+				kdcTransportTextField = new JTextField();
+				kdcTransportTextField.setEditable(false);
+				realmTableLabel = new JLabel("Realms");
+				realmTableTextField = new JTextField();
+				realmTableTextField.setEditable(false);
+				editRealmTableButton = new JButton("Edit...");
+				realmTableHelpButton = new JButton("?");
 				krb5FileTextField = new JTextField("");
 				krb5FileTextField.setEditable(false);
 				changeKrb5FileButton = new JButton("Change...");
@@ -1999,6 +5115,10 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				loggingPanel.setBorder(BorderFactory
 						.createTitledBorder("Logging"));
 
+				performancePanel = new JPanel(new GridBagLayout());
+				performancePanel.setBorder(BorderFactory
+						.createTitledBorder("Performance"));
+
 				dummyPanel = new JPanel();
 
 				callbacks.customizeUiComponent(mainPanel);
@@ -2011,11 +5131,14 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				callbacks.customizeUiComponent(authenticationStrategyPanel);
 				callbacks.customizeUiComponent(scopePanel);
 				callbacks.customizeUiComponent(loggingPanel);
+				callbacks.customizeUiComponent(performancePanel);
 				callbacks.customizeUiComponent(domainDnsLabel);
 				callbacks.customizeUiComponent(kdcLabel);
 				callbacks.customizeUiComponent(domainDnsNameTextField);
 				callbacks.customizeUiComponent(kdcTextField);
 				callbacks.customizeUiComponent(domainStatusTextField);
+				callbacks.customizeUiComponent(kdcHealthLabel);
+				callbacks.customizeUiComponent(kdcHealthTextField);
 				callbacks.customizeUiComponent(changeDomainSettingsButton);
 				callbacks.customizeUiComponent(pingKDCButton);
 				callbacks.customizeUiComponent(domainDnsNameHelpButton);
@@ -2030,12 +5153,51 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				callbacks.customizeUiComponent(changeCredentialsButton);
 				callbacks.customizeUiComponent(testCredentialsButton);
 				callbacks.customizeUiComponent(savePasswordCheckBox);
+				callbacks.customizeUiComponent(tgtStatusLabel);
+				callbacks.customizeUiComponent(tgtStatusTextField);
+				callbacks.customizeUiComponent(loginSourceLabel);
+				callbacks.customizeUiComponent(loginSourceComboBox);
+				callbacks.customizeUiComponent(loginSourceFileTextField);
+				callbacks.customizeUiComponent(loginSourceFileButton);
+				callbacks.customizeUiComponent(loginSourceHelpButton);
 				callbacks.customizeUiComponent(alertLevelLabel);
 				callbacks.customizeUiComponent(loggingLevelLabel);
 				callbacks.customizeUiComponent(alertLevelComboBox);
 				callbacks.customizeUiComponent(loggingLevelComboBox);
 				callbacks.customizeUiComponent(alertLevelHelpButton);
 				callbacks.customizeUiComponent(loggingLevelHelpButton);
+				callbacks.customizeUiComponent(tokenPoolDepthLabel);
+				callbacks.customizeUiComponent(tokenPoolDepthComboBox);
+				callbacks.customizeUiComponent(tokenPoolDepthHelpButton);
+				callbacks.customizeUiComponent(tgtRenewalPercentLabel);
+				callbacks.customizeUiComponent(tgtRenewalPercentComboBox);
+				callbacks.customizeUiComponent(tgtRenewalPercentHelpButton);
+				callbacks.customizeUiComponent(tgtWaitSecondsLabel);
+				callbacks.customizeUiComponent(tgtWaitSecondsComboBox);
+				callbacks.customizeUiComponent(tgtWaitSecondsHelpButton);
+				callbacks.customizeUiComponent(ticketBudgetLabel);
+				callbacks.customizeUiComponent(ticketBudgetComboBox);
+				callbacks.customizeUiComponent(ticketBudgetHelpButton);
+				callbacks.customizeUiComponent(spnProbeFanOutLabel);
+				callbacks.customizeUiComponent(spnProbeFanOutComboBox);
+				callbacks.customizeUiComponent(spnProbeFanOutHelpButton);
+				callbacks.customizeUiComponent(persistTicketsCheckBox);
+				callbacks.customizeUiComponent(persistTicketsHelpButton);
+				callbacks.customizeUiComponent(kdcFailoverCheckBox);
+				callbacks.customizeUiComponent(kdcFailoverHelpButton);
+				callbacks.customizeUiComponent(kdcTcpOnlyCheckBox);
+				callbacks.customizeUiComponent(kdcTcpOnlyHelpButton);
+				callbacks.customizeUiComponent(kdcTimeoutLabel);
+				callbacks.customizeUiComponent(kdcTimeoutComboBox);
+				callbacks.customizeUiComponent(kdcTimeoutHelpButton);
+				callbacks.customizeUiComponent(kdcMaxRetriesLabel);
+				callbacks.customizeUiComponent(kdcMaxRetriesComboBox);
+				callbacks.customizeUiComponent(kdcMaxRetriesHelpButton);
+				callbacks.customizeUiComponent(kdcBudgetLabel);
+				callbacks.customizeUiComponent(kdcBudgetComboBox);
+				callbacks.customizeUiComponent(kdcBudgetHelpButton);
+				callbacks.customizeUiComponent(statisticsButton);
+				callbacks.customizeUiComponent(failedSpnsButton);
 
 				callbacks.customizeUiComponent(proactiveButton);
 				callbacks.customizeUiComponent(proactiveAfter401Button);
@@ -2064,6 +5226,12 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						.customizeUiComponent(checkCurrentKrb5ConfigHelpButton);
 				callbacks.customizeUiComponent(delegationControlsHelpButton);
 				callbacks.customizeUiComponent(krb5FileHelpButton);
+				callbacks.customizeUiComponent(kdcTransportLabel);
+				callbacks.customizeUiComponent(realmTableLabel);
+				callbacks.customizeUiComponent(realmTableTextField);
+				callbacks.customizeUiComponent(editRealmTableButton);
+				callbacks.customizeUiComponent(realmTableHelpButton);
+				callbacks.customizeUiComponent(kdcTransportTextField);
 
 				// DOMAIN SETTINGS PANEL LAYOUT
 				gbc.insets = new Insets(5, 5, 5, 5);
@@ -2137,6 +5305,20 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				gbc.gridx = 6;
 				gbc.gridy = 1;
 				domainPanel.add(kdcHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 3;
+				domainPanel.add(kdcHealthLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 3;
+				gbc.gridwidth = 5;
+				domainPanel.add(kdcHealthTextField, gbc);
+				gbc.gridwidth = 1;
 
 				// CREDENTIALS PANEL LAYOUT
 				gbc.insets = new Insets(5, 5, 5, 5);
@@ -2221,6 +5403,52 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				gbc.gridx = 5;
 				gbc.gridy = 3;
 				credsPanel.add(savePasswordHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 4;
+				credsPanel.add(tgtStatusLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 4;
+				gbc.gridwidth = 4;
+				credsPanel.add(tgtStatusTextField, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 5;
+				credsPanel.add(loginSourceLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 5;
+				credsPanel.add(loginSourceComboBox, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 2;
+				gbc.gridy = 5;
+				gbc.gridwidth = 2;
+				credsPanel.add(loginSourceFileTextField, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 5;
+				credsPanel.add(loginSourceFileButton, gbc);
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 5;
+				gbc.gridy = 5;
+				credsPanel.add(loginSourceHelpButton, gbc);
 
 				// DELEGATION PANEL LAYOUT
 				gbc.insets = new Insets(5, 5, 5, 5);
@@ -2267,6 +5495,52 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				gbc.gridx = 3;
 				gbc.gridy = 1;
 				delegationPanel.add(checkDelegationConfigButton, gbc);
+				gbc.insets = new Insets(5, 5, 5, 5);
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 2;
+				delegationPanel.add(kdcTransportLabel, gbc);
+				gbc.insets = new Insets(5, 5, 5, 5);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 2;
+				gbc.gridwidth = 4;
+				delegationPanel.add(kdcTransportTextField, gbc);
+				gbc.gridwidth = 1;
+				gbc.insets = new Insets(5, 5, 5, 5);
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 3;
+				delegationPanel.add(realmTableLabel, gbc);
+				gbc.insets = new Insets(5, 5, 5, 5);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 3;
+				gbc.gridwidth = 3;
+				delegationPanel.add(realmTableTextField, gbc);
+				gbc.gridwidth = 1;
+				gbc.insets = new Insets(5, 5, 5, 5);
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 3;
+				delegationPanel.add(editRealmTableButton, gbc);
+				gbc.insets = new Insets(5, 5, 5, 5);
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 5;
+				gbc.gridy = 3;
+				delegationPanel.add(realmTableHelpButton, gbc);
 
 				/*
 				gbc.insets = new Insets(5, 5, 5, 5);
@@ -2291,41 +5565,255 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				gbc.weightx = 0.0;
 				gbc.weighty = 0.0;
 				gbc.gridx = 0;
-				gbc.gridy = 0;
-				loggingPanel.add(alertLevelLabel, gbc);
+				gbc.gridy = 0;
+				loggingPanel.add(alertLevelLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 1;
+				loggingPanel.add(loggingLevelLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 0;
+				gbc.gridwidth = 3;
+				loggingPanel.add(alertLevelComboBox, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 1;
+				gbc.gridwidth = 3;
+				loggingPanel.add(loggingLevelComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 0;
+				loggingPanel.add(alertLevelHelpButton, gbc);
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 1;
+				loggingPanel.add(loggingLevelHelpButton, gbc);
+
+				// PERFORMANCE PANEL LAYOUT
+				gbc.insets = new Insets(5, 5, 5, 5);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 0;
+				performancePanel.add(tokenPoolDepthLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 0;
+				gbc.gridwidth = 3;
+				performancePanel.add(tokenPoolDepthComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 0;
+				performancePanel.add(tokenPoolDepthHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 1;
+				performancePanel.add(tgtRenewalPercentLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 1;
+				gbc.gridwidth = 3;
+				performancePanel.add(tgtRenewalPercentComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 1;
+				performancePanel.add(tgtRenewalPercentHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 2;
+				performancePanel.add(tgtWaitSecondsLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 2;
+				gbc.gridwidth = 3;
+				performancePanel.add(tgtWaitSecondsComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 2;
+				performancePanel.add(tgtWaitSecondsHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 3;
+				performancePanel.add(ticketBudgetLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 3;
+				gbc.gridwidth = 3;
+				performancePanel.add(ticketBudgetComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 3;
+				performancePanel.add(ticketBudgetHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 4;
+				performancePanel.add(spnProbeFanOutLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 4;
+				gbc.gridwidth = 3;
+				performancePanel.add(spnProbeFanOutComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 4;
+				performancePanel.add(spnProbeFanOutHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 5;
+				gbc.gridwidth = 4;
+				performancePanel.add(persistTicketsCheckBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 5;
+				performancePanel.add(persistTicketsHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 6;
+				gbc.gridwidth = 4;
+				performancePanel.add(kdcFailoverCheckBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 6;
+				performancePanel.add(kdcFailoverHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 7;
+				gbc.gridwidth = 4;
+				performancePanel.add(kdcTcpOnlyCheckBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 7;
+				performancePanel.add(kdcTcpOnlyHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 8;
+				performancePanel.add(kdcTimeoutLabel, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 1;
+				gbc.gridy = 8;
+				gbc.gridwidth = 3;
+				performancePanel.add(kdcTimeoutComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 8;
+				performancePanel.add(kdcTimeoutHelpButton, gbc);
 				gbc.fill = GridBagConstraints.HORIZONTAL;
 				gbc.weightx = 0.0;
 				gbc.weighty = 0.0;
 				gbc.gridx = 0;
-				gbc.gridy = 1;
-				loggingPanel.add(loggingLevelLabel, gbc);
+				gbc.gridy = 9;
+				performancePanel.add(kdcMaxRetriesLabel, gbc);
 				gbc.fill = GridBagConstraints.HORIZONTAL;
 				gbc.weightx = 1.0;
 				gbc.weighty = 0.0;
 				gbc.gridx = 1;
-				gbc.gridy = 0;
+				gbc.gridy = 9;
 				gbc.gridwidth = 3;
-				loggingPanel.add(alertLevelComboBox, gbc);
+				performancePanel.add(kdcMaxRetriesComboBox, gbc);
+				gbc.gridwidth = 1;
+				gbc.fill = GridBagConstraints.NONE;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 4;
+				gbc.gridy = 9;
+				performancePanel.add(kdcMaxRetriesHelpButton, gbc);
+				gbc.fill = GridBagConstraints.HORIZONTAL;
+				gbc.weightx = 0.0;
+				gbc.weighty = 0.0;
+				gbc.gridx = 0;
+				gbc.gridy = 10;
+				performancePanel.add(kdcBudgetLabel, gbc);
 				gbc.fill = GridBagConstraints.HORIZONTAL;
 				gbc.weightx = 1.0;
 				gbc.weighty = 0.0;
 				gbc.gridx = 1;
-				gbc.gridy = 1;
+				gbc.gridy = 10;
 				gbc.gridwidth = 3;
-				loggingPanel.add(loggingLevelComboBox, gbc);
+				performancePanel.add(kdcBudgetComboBox, gbc);
 				gbc.gridwidth = 1;
 				gbc.fill = GridBagConstraints.NONE;
 				gbc.weightx = 0.0;
 				gbc.weighty = 0.0;
 				gbc.gridx = 4;
-				gbc.gridy = 0;
-				loggingPanel.add(alertLevelHelpButton, gbc);
+				gbc.gridy = 10;
+				performancePanel.add(kdcBudgetHelpButton, gbc);
 				gbc.fill = GridBagConstraints.NONE;
 				gbc.weightx = 0.0;
 				gbc.weighty = 0.0;
-				gbc.gridx = 4;
-				gbc.gridy = 1;
-				loggingPanel.add(loggingLevelHelpButton, gbc);
+				gbc.gridx = 1;
+				gbc.gridy = 11;
+				performancePanel.add(statisticsButton, gbc);
+				gbc.gridx = 2;
+				gbc.gridy = 11;
+				performancePanel.add(failedSpnsButton, gbc);
 
 				// AUTH STRATEGY PANEL LAYOUT
 				gbc.insets = new Insets(5, 5, 5, 5);
@@ -2495,12 +5983,17 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				gbc.weighty = 0.1;
 				gbc.gridx = 0;
 				gbc.gridy = 6;
+				mainPanel.add(performancePanel, gbc);
+				gbc.weightx = 1.0;
+				gbc.weighty = 0.1;
+				gbc.gridx = 0;
+				gbc.gridy = 7;
 				mainPanel.add(loggingPanel, gbc);
 				gbc.fill = GridBagConstraints.BOTH;
 				gbc.weightx = 1.0;
 				gbc.weighty = 3.0;
 				gbc.gridx = 0;
-				gbc.gridy = 7;
+				gbc.gridy = 8;
 				mainPanel.add(dummyPanel, gbc);
 
 				// ACTION LISTENERS
@@ -2523,6 +6016,36 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 					}
 				});
 
+				loginSourceComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						LoginSource source = LoginSource.values()[cb
+								.getSelectedIndex()];
+						if (source != loginSource) {
+							setLoginSource(source, loginSourceFile);
+						}
+					}
+				});
+
+				loginSourceFileButton.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						JFileChooser chooser = new JFileChooser();
+						if (!loginSourceFile.isEmpty()) {
+							chooser.setSelectedFile(new File(loginSourceFile));
+						}
+						chooser.setDialogTitle("Select keytab or ticket cache file");
+						int returnVal = chooser.showOpenDialog(mainPanel);
+
+						if (returnVal == JFileChooser.APPROVE_OPTION) {
+							File f = chooser.getSelectedFile();
+							loginSourceFileTextField.setText(f.getPath());
+							setLoginSource(loginSource, f.getPath());
+						}
+					}
+				});
+
 				changeDomainSettingsButton
 						.addActionListener(new ActionListener() {
 							public void actionPerformed(ActionEvent e) {
@@ -2530,6 +6053,12 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 							}
 						});
 
+				editRealmTableButton.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						editRealmTable();
+					}
+				});
+
 				pingKDCButton.addActionListener(new ActionListener() {
 					public void actionPerformed(ActionEvent e) {
 						pingKDC();
@@ -2578,6 +6107,133 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						logLevel = cb.getSelectedIndex();
 					}
 				});
+
+				tokenPoolDepthComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						tokenPoolDepth = Integer.parseInt((String) cb
+								.getSelectedItem());
+					}
+				});
+
+				tgtRenewalPercentComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						tgtRenewalPercent = Integer.parseInt((String) cb
+								.getSelectedItem());
+						rescheduleTgtRenewal();
+					}
+				});
+
+				tgtWaitSecondsComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						tgtWaitSeconds = Integer.parseInt((String) cb
+								.getSelectedItem());
+					}
+				});
+
+				ticketBudgetComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						ticketBudgetMillis = Integer.parseInt((String) cb
+								.getSelectedItem());
+					}
+				});
+
+				kdcTcpOnlyCheckBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent actionEvent) {
+						JCheckBox cb = (JCheckBox) actionEvent.getSource();
+						kdcTcpOnly = cb.isSelected();
+						applyKrb5Config();
+					}
+				});
+
+				kdcTimeoutComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						kdcTimeoutMillis = Integer.parseInt((String) cb
+								.getSelectedItem());
+						applyKrb5Config();
+					}
+				});
+
+				kdcMaxRetriesComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						kdcMaxRetries = Integer.parseInt((String) cb
+								.getSelectedItem());
+						applyKrb5Config();
+					}
+				});
+
+				kdcBudgetComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						kdcBudgetSeconds = Integer.parseInt((String) cb
+								.getSelectedItem());
+						applyKrb5Config();
+					}
+				});
+
+				kdcFailoverCheckBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent actionEvent) {
+						JCheckBox cb = (JCheckBox) actionEvent.getSource();
+						kdcFailover = cb.isSelected();
+						if (!kdcHost.isEmpty()) {
+							kdcSelector.reset(kdcHost);
+							kdcSelector.startProbe();
+						}
+					}
+				});
+
+				persistTicketsCheckBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent actionEvent) {
+						JCheckBox cb = (JCheckBox) actionEvent.getSource();
+						persistTickets = cb.isSelected();
+						if (persistTickets) {
+							saveTickets();
+						} else {
+							ticketStore.delete();
+						}
+					}
+				});
+
+				spnProbeFanOutComboBox.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						@SuppressWarnings("unchecked")
+						JComboBox<String> cb = (JComboBox<String>) e
+								.getSource();
+						spnProbeFanOut = Integer.parseInt((String) cb
+								.getSelectedItem());
+					}
+				});
+
+				statisticsButton.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						showStatistics();
+					}
+				});
+
+				failedSpnsButton.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						showFailedSpns();
+					}
+				});
 				
 				everythingInScopeCheckBox
 				.addActionListener(new ActionListener() {
@@ -2585,6 +6241,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						JCheckBox cb = (JCheckBox) actionEvent
 								.getSource();
 						everythingInScope = cb.isSelected();
+						scopeCache.invalidate();
 						updateScopeControls( !everythingInScope);
 						updateScopeListLabel(everythingInScope, wholeDomainInScope);
 						warnIfProactiveAndEverythingInScope();
@@ -2597,6 +6254,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 						JCheckBox cb = (JCheckBox) actionEvent
 								.getSource();
 						wholeDomainInScope = cb.isSelected();
+						scopeCache.invalidate();
 						updateScopeListLabel(everythingInScope, wholeDomainInScope);
 					}
 				});	
@@ -2607,6 +6265,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 								JCheckBox cb = (JCheckBox) actionEvent
 										.getSource();
 								plainhostExpand = cb.isSelected();
+								scopeCache.invalidate();
 							}
 						});
 
@@ -2767,6 +6426,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 								PrintWriter writer = new PrintWriter(f);
 								writer.println("[libdefaults]");
 								writer.println("\tforwardable = true");
+								writer.println("\trenewable = true");
+								writer.println("\trenew_lifetime = 7d");
 								writer.close();
 							} catch (FileNotFoundException ee) {
 								JOptionPane.showMessageDialog(null, String
@@ -2859,6 +6520,45 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 				loggingLevelHelpButton
 						.addActionListener(new HelpButtonActionListener(
 								loggingLevelHelpString));
+				tokenPoolDepthHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								tokenPoolDepthHelpString));
+				tgtRenewalPercentHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								tgtRenewalPercentHelpString));
+				tgtWaitSecondsHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								tgtWaitSecondsHelpString));
+				ticketBudgetHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								ticketBudgetHelpString));
+				spnProbeFanOutHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								spnProbeFanOutHelpString));
+				persistTicketsHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								persistTicketsHelpString));
+				kdcFailoverHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								kdcFailoverHelpString));
+				kdcTcpOnlyHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								kdcTcpOnlyHelpString));
+				kdcTimeoutHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								kdcTimeoutHelpString));
+				kdcMaxRetriesHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								kdcMaxRetriesHelpString));
+				kdcBudgetHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								kdcBudgetHelpString));
+				loginSourceHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								loginSourceHelpString));
+				realmTableHelpButton
+						.addActionListener(new HelpButtonActionListener(
+								realmTableHelpString));
 				authStrategyHelpButton
 						.addActionListener(new HelpButtonActionListener(
 								authStrategyHelpString));
@@ -2885,6 +6585,117 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		});
 	}
 
+	private void showStatistics() {
+		String stats = String.format(
+				"Requests over the service ticket time limit: %d\n"
+						+ "Logins using password: %d\n"
+						+ "TGT renewals: %d\n"
+						+ "SPN learning contexts cached: %d\n"
+						+ "SPN learning cache hits: %d, misses: %d\n"
+						+ "SPN learning cache evictions: %d, expired: %d\n"
+						+ "Responses examined: %d, skipped by status line: %d\n"
+						+ "Hosts with a remembered scope decision: %d\n"
+						+ "Scope decision hits: %d, misses: %d",
+				ticketBudgetExceededCount.get(), passwordLoginCount.get(),
+				tgtRenewedCount.get(),
+				contextCache == null ? 0 : contextCache.size(),
+				contextCacheHitCount.get(), contextCacheMissCount.get(),
+				contextCacheEvictionCount.get(),
+				contextCacheExpiredCount.get(), responsesExaminedCount.get(),
+				responsesSkippedCount.get(), scopeCache.size(),
+				scopeCacheHitCount.get(), scopeCacheMissCount.get());
+
+		JOptionPane.showMessageDialog(null, stats, "Statistics",
+				JOptionPane.INFORMATION_MESSAGE);
+	}
+
+	private void editRealmTable() {
+		final DefaultTableModel model = new DefaultTableModel(new Object[] {
+				"Realm", "KDCs", "Enctypes" }, 0);
+
+		for (RealmEntry re : realmTable) {
+			model.addRow(new Object[] { re.realm, String.join(" ", re.kdcs),
+					re.enctypes });
+		}
+
+		final JTable table = new JTable(model);
+		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		JScrollPane pane = new JScrollPane(table);
+		pane.setPreferredSize(new Dimension(600, 200));
+
+		JButton addButton = new JButton("Add");
+		addButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				model.addRow(new Object[] { "", "", "" });
+			}
+		});
+
+		JButton removeButton = new JButton("Remove");
+		removeButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if (table.getSelectedRow() >= 0) {
+					if (table.isEditing()) {
+						table.getCellEditor().cancelCellEditing();
+					}
+					model.removeRow(table.getSelectedRow());
+				}
+			}
+		});
+
+		JPanel buttons = new JPanel();
+		buttons.add(addButton);
+		buttons.add(removeButton);
+
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.add(pane, BorderLayout.CENTER);
+		panel.add(buttons, BorderLayout.SOUTH);
+
+		int result = JOptionPane.showConfirmDialog(null, panel, "Realms",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+
+		if (result != JOptionPane.OK_OPTION) {
+			return;
+		}
+
+		if (table.isEditing()) {
+			table.getCellEditor().stopCellEditing();
+		}
+
+		List<RealmEntry> newTable = new ArrayList<RealmEntry>();
+		for (int ii = 0; ii < model.getRowCount(); ii++) {
+			String realm = String.valueOf(model.getValueAt(ii, 0)).trim();
+
+			if (!realm.isEmpty()) {
+				newTable.add(new RealmEntry(realm, splitKdcList(String
+						.valueOf(model.getValueAt(ii, 1))), String
+						.valueOf(model.getValueAt(ii, 2))));
+			}
+		}
+
+		realmTable = newTable;
+		realmTableTextField.setText(describeRealmTable());
+		log(2, "Realm table set to " + describeRealmTable());
+		applyKrb5Config();
+	}
+
+	private void showFailedSpns() {
+		String message;
+
+		if (failedSpns == null) {
+			message = "Domain details haven't been set yet.";
+		} else {
+			message = failedSpns.describe();
+			if (message.isEmpty()) {
+				message = "No SPNs are currently marked as failed.";
+			}
+		}
+
+		JTextArea textArea = new JTextArea(message, 15, 60);
+		textArea.setEditable(false);
+		JOptionPane.showMessageDialog(null, new JScrollPane(textArea),
+				"Failed SPNs", JOptionPane.INFORMATION_MESSAGE);
+	}
+
 	private void testDelegationConfig() {
 		if (krb5File.isEmpty()) {
 			JOptionPane
@@ -2934,6 +6745,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		domainStatusTextField.setText("");
 		
 		credentialsStatusTextField.setText("");
+		tgtStatusTextField.setText(tgtStatus);
 		usernameTextField.setText(username);
 		passwordField.setText(password);
 		savePasswordCheckBox.setSelected(savePassword);
@@ -2965,6 +6777,21 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		
 		alertLevelComboBox.setSelectedIndex(alertLevel);
 		loggingLevelComboBox.setSelectedIndex(logLevel);
+
+		tokenPoolDepthComboBox.setSelectedItem(String.valueOf(tokenPoolDepth));
+		tgtRenewalPercentComboBox.setSelectedItem(String.valueOf(tgtRenewalPercent));
+		tgtWaitSecondsComboBox.setSelectedItem(String.valueOf(tgtWaitSeconds));
+		ticketBudgetComboBox.setSelectedItem(String.valueOf(ticketBudgetMillis));
+		spnProbeFanOutComboBox.setSelectedItem(String.valueOf(spnProbeFanOut));
+		persistTicketsCheckBox.setSelected(persistTickets);
+		kdcFailoverCheckBox.setSelected(kdcFailover);
+		kdcTcpOnlyCheckBox.setSelected(kdcTcpOnly);
+		kdcTimeoutComboBox.setSelectedItem(String.valueOf(kdcTimeoutMillis));
+		kdcMaxRetriesComboBox.setSelectedItem(String.valueOf(kdcMaxRetries));
+		kdcBudgetComboBox.setSelectedItem(String.valueOf(kdcBudgetSeconds));
+		loginSourceComboBox.setSelectedIndex(loginSource.ordinal());
+		loginSourceFileTextField.setText(loginSourceFile);
+		realmTableTextField.setText(describeRealmTable());
 	}
 	
 	
@@ -3024,6 +6851,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 		enableComponents(scopePanel, enabled);
 		loggingPanel.setEnabled(enabled);
 		enableComponents(loggingPanel, enabled);
+		performancePanel.setEnabled(enabled);
+		enableComponents(performancePanel, enabled);
 		delegationPanel.setEnabled(enabled);
 		enableComponents(delegationPanel, enabled);
 
@@ -3035,7 +6864,8 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 								null,
 								"Domain DNS Name, KDC Host, Username and (probably) Password must all be set, and ideally tested, before Kerberos authentication will work",
 								"Warning", JOptionPane.WARNING_MESSAGE);
-			} else if (password.isEmpty()) {
+			} else if (password.isEmpty()
+					&& loginSource == LoginSource.PASSWORD) {
 				JOptionPane
 						.showMessageDialog(
 								null,
@@ -3044,6 +6874,9 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 			}
 			
 			warnIfProactiveAndEverythingInScope();
+
+			kdcSelector.startProbe();
+			startTgtAcquisitionIfConfigured();
 		}
 	}
 	
@@ -3145,12 +6978,12 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	// 
 	// ValidHostnameRegex = "^(([a-zA-Z0-9]|[a-zA-Z0-9][a-zA-Z0-9\-]*[a-zA-Z0-9])\.)*([A-Za-z0-9]|[A-Za-z0-9][A-Za-z0-9\-]*[A-Za-z0-9])$";
 	
-	private boolean checkSpecialHostnameRegexp(String input) {
-		// https://stackoverflow.com/questions/106179/regular-expression-to-match-dns-hostname-or-ip-address
-		String pattern = "^(([a-zA-Z0-9\\*\\?]|[a-zA-Z0-9\\*\\?][a-zA-Z0-9\\-\\*\\?]*[a-zA-Z0-9\\*\\?])\\.)*([A-Za-z0-9\\*\\?]|[A-Za-z0-9\\*\\?][A-Za-z0-9\\*\\?\\-]*[A-Za-z0-9\\*\\?])$";
-		Pattern r = Pattern.compile(pattern);
+	// https://stackoverflow.com/questions/106179/regular-expression-to-match-dns-hostname-or-ip-address
+	private final Pattern specialHostnamePattern = Pattern
+			.compile("^(([a-zA-Z0-9\\*\\?]|[a-zA-Z0-9\\*\\?][a-zA-Z0-9\\-\\*\\?]*[a-zA-Z0-9\\*\\?])\\.)*([A-Za-z0-9\\*\\?]|[A-Za-z0-9\\*\\?][A-Za-z0-9\\*\\?\\-]*[A-Za-z0-9\\*\\?])$");
 
-		Matcher m = r.matcher(input);
+	private boolean checkSpecialHostnameRegexp(String input) {
+		Matcher m = specialHostnamePattern.matcher(input);
 
 		return m.find();
 	}
@@ -3355,6 +7188,7 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 			return;
 		}
 
+		setKrb5Config();
 		setupKerberosConfig();
 
 		try {
@@ -3398,6 +7232,99 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 	 * }
 	 */
 
+	private List<String> lookupKdcsFromDns(String domain) throws Exception {
+		List<String> results = new ArrayList<String>();
+
+		Hashtable<String, String> envProps = new Hashtable<String, String>();
+		envProps.put(Context.INITIAL_CONTEXT_FACTORY,
+				"com.sun.jndi.dns.DnsContextFactory");
+		DirContext dnsContext = new InitialDirContext(envProps);
+		Attributes dnsEntries = dnsContext.getAttributes("_kerberos._tcp."
+				+ domain.toLowerCase(), new String[] { "SRV" });
+		if (dnsEntries != null) {
+			Attribute attr = dnsEntries.get("SRV");
+
+			if (attr != null) {
+				List<String[]> records = new ArrayList<String[]>();
+				for (int i = 0; i < attr.size(); i++) {
+					String s = (String) attr.get(i);
+					String[] parts = s.trim().split(" +");
+					if (parts.length == 4 && parts[0].matches("\\d+")
+							&& parts[1].matches("\\d+")) {
+						records.add(parts); // priority weight port target
+					}
+				}
+
+				// the port is dropped - KdcSelector only probes port 88
+				for (String namePart : orderSrvRecords(records)) {
+					if (namePart.endsWith(".")) {
+						namePart = namePart.substring(0,
+								namePart.length() - 1);
+					}
+					if (!namePart.isEmpty() && !results.contains(namePart)) {
+						results.add(namePart);
+					}
+				}
+			}
+		}
+
+		return results;
+	}
+
+	// the order RFC 2782 says clients should use: lowest priority first, and
+	// among records with the same priority, a random order in which each
+	// record's chance of coming next is proportional to its weight.
+	// Package-private for the tests
+	List<String> orderSrvRecords(List<String[]> records) {
+		List<String> ret = new ArrayList<String>();
+
+		Collections.sort(records, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] a, String[] b) {
+				return Integer.compare(Integer.parseInt(a[0]),
+						Integer.parseInt(b[0]));
+			}
+		});
+
+		Random random = new Random();
+		int ii = 0;
+
+		while (ii < records.size()) {
+			List<String[]> group = new ArrayList<String[]>();
+			String priority = records.get(ii)[0];
+
+			while (ii < records.size()
+					&& Integer.parseInt(records.get(ii)[0]) == Integer
+							.parseInt(priority)) {
+				String[] r = records.get(ii++);
+				if (r[1].equals("0")) {
+					group.add(0, r); // zero weight records go first, so they can still be picked
+				} else {
+					group.add(r);
+				}
+			}
+
+			while (!group.isEmpty()) {
+				int total = 0;
+				for (String[] r : group) {
+					total += Integer.parseInt(r[1]);
+				}
+
+				int pick = random.nextInt(total + 1);
+				int sum = 0;
+				for (int jj = 0; jj < group.size(); jj++) {
+					sum += Integer.parseInt(group.get(jj)[1]);
+					if (sum >= pick) {
+						ret.add(group.remove(jj)[3]);
+						break;
+					}
+				}
+			}
+		}
+
+		return ret;
+	}
+
 	private void kdcAuto() {
 		if (domainDnsName.isEmpty()) {
 			JOptionPane.showMessageDialog(null,
@@ -3406,32 +7333,46 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 			return;
 		}
 
-		List<String> results = new ArrayList<String>();
-		try {
-			Hashtable<String, String> envProps = new Hashtable<String, String>();
-			envProps.put(Context.INITIAL_CONTEXT_FACTORY,
-					"com.sun.jndi.dns.DnsContextFactory");
-			DirContext dnsContext = new InitialDirContext(envProps);
-			Attributes dnsEntries = dnsContext.getAttributes("_kerberos._tcp."
-					+ domainDnsName.toLowerCase(), new String[] { "SRV" });
-			if (dnsEntries != null) {
-				Attribute attr = dnsEntries.get("SRV");
-
-				if (attr != null) {
-					for (int i = 0; i < attr.size(); i++) {
-						String s = (String) attr.get(i);
-						String[] parts = s.split(" ");
-						String namePart = parts[parts.length - 1];
-						if (namePart.endsWith(".")) {
-							namePart = namePart.substring(0,
-									namePart.length() - 1);
-						}
-						results.add(namePart);
-					}
+		final String domain = domainDnsName;
+		domainStatusTextField.setText("Looking up KDCs in DNS...");
+
+		// DNS can be slow to answer, so the lookup is done off the Swing
+		// thread
+		housekeepingExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<String> results = null;
+				Exception error = null;
+
+				try {
+					results = srvResolver.refresh(domain);
+				} catch (Exception e) {
+					error = e;
 				}
+
+				final List<String> finalResults = results;
+				final Exception finalError = error;
+
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						kdcAutoLookupFinished(domain, finalResults, finalError);
+					}
+				});
 			}
-		} catch (Exception e) {
-			if (e.getMessage().startsWith("DNS name not found")) {
+		});
+	}
+
+	private void kdcAutoLookupFinished(String domain, List<String> results,
+			Exception e) {
+		if (!domain.equals(domainDnsName)) {
+			return; // the domain's been changed since
+		}
+
+		domainStatusTextField.setText("");
+
+		if (e != null) {
+			if (e instanceof NameNotFoundException) {
 				JOptionPane
 						.showMessageDialog(
 								null,
@@ -3459,6 +7400,9 @@ public class BurpExtender implements IBurpExtender, IHttpListener, ITab,
 
 		if (results.size() == 1) {
 			selectedValue = results.get(0);
+		} else if (kdcFailover) {
+			// they'll all be used, fastest first, so no need to ask
+			selectedValue = results.get(0);
 		} else {
 			Object[] possibilities = new Object[results.size()];
 			for (int ii = 0; ii < results.size(); ii++) {
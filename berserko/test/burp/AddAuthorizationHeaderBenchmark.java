@@ -0,0 +1,74 @@
+package burp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// the Authorization header splice across body sizes. copyRequest is a single
+// copy of the request, which is the least any way of adding a header to a
+// byte[] can cost - the splice should stay close to it however big the body
+// is. (The old analyze/copy/rebuild path needs Burp's helpers, so it can't
+// be run outside Burp.)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AddAuthorizationHeaderBenchmark {
+	@Param({ "0", "1024", "1048576", "16777216" })
+	public int bodySize;
+
+	private BurpExtender extender;
+	private byte[] req;
+	private int headersEnd;
+	private String token;
+
+	@Setup
+	public void setUp() {
+		extender = new BurpExtender();
+
+		byte[] head = ("POST /upload HTTP/1.1\r\nHost: a.example.com\r\n"
+				+ "Content-Type: application/octet-stream\r\n"
+				+ "Content-Length: " + bodySize + "\r\n\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+		req = Arrays.copyOf(head, head.length + bodySize);
+		Arrays.fill(req, head.length, req.length, (byte) 'x');
+		headersEnd = extender.new AuthHeaders(req).headersEnd;
+
+		char[] tok = new char[2000]; // about the size of an AD service ticket
+		Arrays.fill(tok, 'A');
+		token = new String(tok);
+	}
+
+	@Benchmark
+	public byte[] splice() {
+		return extender.addAuthorizationHeader(req, headersEnd, token);
+	}
+
+	@Benchmark
+	public byte[] copyRequest() {
+		return Arrays.copyOf(req, req.length + token.length() + 27);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				AddAuthorizationHeaderBenchmark.class.getSimpleName()).build())
+				.run();
+	}
+}
@@ -0,0 +1,87 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AddAuthorizationHeaderTest {
+	private BurpExtender extender;
+	private List<String> helperCalls;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+		helperCalls = new ArrayList<String>();
+		TestSupport.setField(extender, "helpers",
+				TestSupport.fakeHelpers((short) 200, helperCalls));
+	}
+
+	private String addHeader(String req, String token) {
+		byte[] bytes = req.getBytes(StandardCharsets.ISO_8859_1);
+		int headersEnd = extender.new AuthHeaders(bytes).headersEnd;
+
+		return new String(extender.addAuthorizationHeader(bytes, headersEnd,
+				token), StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void crlfRequestWithBody() {
+		assertEquals("POST / HTTP/1.1\r\nHost: a.example.com\r\n"
+				+ "Content-Length: 4\r\n"
+				+ "Authorization: Negotiate YIIB==\r\n\r\nbody", addHeader(
+				"POST / HTTP/1.1\r\nHost: a.example.com\r\n"
+						+ "Content-Length: 4\r\n\r\nbody", "YIIB=="));
+		assertTrue(helperCalls.isEmpty());
+	}
+
+	@Test
+	public void crlfRequestWithoutBody() {
+		assertEquals("GET / HTTP/1.1\r\nHost: a.example.com\r\n"
+				+ "Authorization: Negotiate tok\r\n\r\n", addHeader(
+				"GET / HTTP/1.1\r\nHost: a.example.com\r\n\r\n", "tok"));
+		assertTrue(helperCalls.isEmpty());
+	}
+
+	@Test
+	public void lfOnlyRequestKeepsItsLineEndings() {
+		assertEquals("GET / HTTP/1.1\nHost: a.example.com\n"
+				+ "Authorization: Negotiate tok\n\nbody", addHeader(
+				"GET / HTTP/1.1\nHost: a.example.com\n\nbody", "tok"));
+		assertTrue(helperCalls.isEmpty());
+	}
+
+	@Test
+	public void bodyLooksLikeHeaders() {
+		assertEquals("GET / HTTP/1.1\r\n"
+				+ "Authorization: Negotiate tok\r\n\r\n"
+				+ "X-Not-A-Header: 1\r\n\r\n", addHeader("GET / HTTP/1.1\r\n"
+				+ "\r\nX-Not-A-Header: 1\r\n\r\n", "tok"));
+	}
+
+	@Test
+	public void missingBlankLineIsLeftToBurp() {
+		assertEquals("GET / HTTP/1.1\r\nHost: a.example.com\r\n"
+				+ "Authorization: Negotiate tok\r\n\r\n", addHeader(
+				"GET / HTTP/1.1\r\nHost: a.example.com\r\n", "tok"));
+		assertTrue(helperCalls.contains("analyzeRequest"));
+		assertTrue(helperCalls.contains("buildHttpMessage"));
+	}
+
+	@Test
+	public void largeBodyIsCopiedIntact() {
+		StringBuilder body = new StringBuilder();
+		for (int ii = 0; ii < 100000; ii++) {
+			body.append((char) ('a' + ii % 26));
+		}
+		String head = "PUT /upload HTTP/1.1\r\nContent-Length: 100000\r\n";
+
+		assertEquals(head + "Authorization: Negotiate tok\r\n\r\n" + body,
+				addHeader(head + "\r\n" + body, "tok"));
+	}
+}
@@ -0,0 +1,80 @@
+package burp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// getting the Negotiate token out of a typical 401. regexPerCall is the
+// header handling AuthHeaders replaced - a prefix scan of the header list
+// and a Pattern.compile per call - run on a header list that's already been
+// split out, since Burp's analyzeResponse (which made that list) can't be
+// run outside Burp. So it flatters the old way
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AuthHeadersBenchmark {
+	private BurpExtender extender;
+	private byte[] resp;
+	private List<String> headers;
+
+	@Setup
+	public void setUp() {
+		extender = new BurpExtender();
+
+		char[] tok = new char[300];
+		Arrays.fill(tok, 'A');
+		String msg = "HTTP/1.1 401 Unauthorized\r\n"
+				+ "Content-Type: text/html\r\n"
+				+ "Server: Microsoft-IIS/10.0\r\n"
+				+ "WWW-Authenticate: Negotiate " + new String(tok) + "==\r\n"
+				+ "WWW-Authenticate: NTLM\r\n"
+				+ "X-Powered-By: ASP.NET\r\n"
+				+ "Date: Sat, 17 Oct 2026 12:00:00 GMT\r\n"
+				+ "Content-Length: 1293\r\n\r\n";
+		resp = msg.getBytes(StandardCharsets.ISO_8859_1);
+		headers = Arrays.asList(msg.trim().split("\r\n"));
+	}
+
+	@Benchmark
+	public String authHeaders() {
+		return extender.new AuthHeaders(resp).getNegotiateToken();
+	}
+
+	@Benchmark
+	public String regexPerCall() {
+		for (String header : headers) {
+			if (header.startsWith("WWW-Authenticate: Negotiate")) {
+				Matcher m = Pattern.compile(
+						"WWW-Authenticate:\\s*Negotiate\\s*(.*)").matcher(
+						header);
+				return m.find() ? m.group(1) : "";
+			}
+		}
+		return "";
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				AuthHeadersBenchmark.class.getSimpleName()).build()).run();
+	}
+}
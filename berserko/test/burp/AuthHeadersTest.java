@@ -0,0 +1,192 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AuthHeadersTest {
+	private BurpExtender extender;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+	}
+
+	private BurpExtender.AuthHeaders parse(String msg) {
+		return extender.new AuthHeaders(bytes(msg));
+	}
+
+	private byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void negotiateTokenKeepsBase64Padding() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "WWW-Authenticate: Negotiate YIIBhQYGKwYBBQUCoA==\r\n\r\n");
+
+		assertTrue(auth.negotiate);
+		assertEquals("YIIBhQYGKwYBBQUCoA==", auth.getNegotiateToken());
+	}
+
+	@Test
+	public void negotiateWithNoToken() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "WWW-Authenticate: Negotiate\r\n\r\n");
+
+		assertTrue(auth.negotiate);
+		assertFalse(auth.ntlm);
+		assertEquals("", auth.getNegotiateToken());
+	}
+
+	@Test
+	public void commaJoinedChallenges() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "WWW-Authenticate: Negotiate, NTLM\r\n\r\n");
+
+		assertEquals(Arrays.asList("Negotiate", "NTLM"), auth.schemes);
+		assertTrue(auth.negotiate);
+		assertTrue(auth.ntlm);
+	}
+
+	@Test
+	public void paddedTokenFollowedByAnotherChallenge() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "WWW-Authenticate: Negotiate abc= , NTLM\r\n\r\n");
+
+		assertEquals(Arrays.asList("Negotiate", "NTLM"), auth.schemes);
+		assertEquals("abc=", auth.getNegotiateToken());
+	}
+
+	@Test
+	public void quotedParameterWithCommas() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "WWW-Authenticate: Basic realm=\"a, \\\"b\\\", c\", charset=\"UTF-8\", Negotiate\r\n\r\n");
+
+		assertEquals(Arrays.asList("Basic", "Negotiate"), auth.schemes);
+		assertEquals("", auth.getNegotiateToken());
+	}
+
+	@Test
+	public void challengesOnSeparateLinesAnyCase() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "Content-Length: 0\r\n"
+				+ "www-authenticate: NTLM\r\n"
+				+ "WWW-AUTHENTICATE : negotiate tok\r\n\r\n");
+
+		assertEquals(Arrays.asList("NTLM", "negotiate"), auth.schemes);
+		assertEquals("tok", auth.getNegotiateToken());
+	}
+
+	@Test
+	public void firstNegotiateTokenWins() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "WWW-Authenticate: Negotiate\r\n"
+				+ "WWW-Authenticate: Negotiate first\r\n"
+				+ "WWW-Authenticate: Negotiate second\r\n\r\n");
+
+		assertEquals("first", auth.getNegotiateToken());
+	}
+
+	@Test
+	public void authorizationHeader() {
+		BurpExtender.AuthHeaders auth = parse("GET / HTTP/1.1\r\n"
+				+ "Host: a.example.com\r\n"
+				+ "authorization: negotiate YIIB==\r\n\r\n");
+
+		assertTrue(auth.hasAuthorization());
+		assertTrue(auth.hasNegotiateAuthorization());
+		assertEquals("YIIB==", auth.getNegotiateAuthorizationToken());
+	}
+
+	@Test
+	public void otherAuthorizationScheme() {
+		BurpExtender.AuthHeaders auth = parse("GET / HTTP/1.1\r\n"
+				+ "Authorization: Basic dXNlcjpwYXNz\r\n\r\n");
+
+		assertTrue(auth.hasAuthorization());
+		assertFalse(auth.hasNegotiateAuthorization());
+		assertEquals("", auth.getNegotiateAuthorizationToken());
+	}
+
+	@Test
+	public void lfOnlyLineEndings() {
+		String msg = "GET / HTTP/1.1\nHost: a.example.com\n\nbody";
+		BurpExtender.AuthHeaders auth = parse(msg);
+
+		assertEquals(msg.indexOf("\n\n") + 1, auth.headersEnd);
+		assertFalse(auth.hasAuthorization());
+	}
+
+	@Test
+	public void crlfLineEndings() {
+		String msg = "GET / HTTP/1.1\r\nHost: a.example.com\r\n\r\nbody";
+
+		assertEquals(msg.indexOf("\r\n\r\n") + 2, parse(msg).headersEnd);
+	}
+
+	@Test
+	public void missingBlankLine() {
+		BurpExtender.AuthHeaders auth = parse("GET / HTTP/1.1\r\n"
+				+ "Host: a.example.com\r\n");
+
+		assertEquals(-1, auth.headersEnd);
+	}
+
+	@Test
+	public void unterminatedHeaderIsIgnored() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n"
+				+ "WWW-Authenticate: Negotiate");
+
+		assertFalse(auth.negotiate);
+		assertEquals(-1, auth.headersEnd);
+	}
+
+	@Test
+	public void headersInBodyAreIgnored() {
+		BurpExtender.AuthHeaders auth = parse("HTTP/1.1 401 Unauthorized\r\n\r\n"
+				+ "WWW-Authenticate: Negotiate\r\n");
+
+		assertFalse(auth.negotiate);
+	}
+
+	@Test
+	public void isParameter() {
+		BurpExtender.AuthHeaders auth = parse("GET / HTTP/1.1\r\n\r\n");
+		byte[] msg;
+
+		msg = bytes("realm=\"x\"");
+		assertTrue(auth.isParameter(msg, 5, msg.length));
+		msg = bytes("realm = x");
+		assertTrue(auth.isParameter(msg, 5, msg.length));
+		// token68 padding at the end of the header or before a comma
+		msg = bytes("abc==");
+		assertFalse(auth.isParameter(msg, 3, msg.length));
+		msg = bytes("abc== , NTLM");
+		assertFalse(auth.isParameter(msg, 3, msg.length));
+		msg = bytes("abc");
+		assertFalse(auth.isParameter(msg, 3, msg.length));
+	}
+
+	@Test
+	public void skipParameter() {
+		BurpExtender.AuthHeaders auth = parse("GET / HTTP/1.1\r\n\r\n");
+		byte[] msg;
+
+		msg = bytes("realm=x, NTLM");
+		assertEquals(7, auth.skipParameter(msg, 5, msg.length));
+		msg = bytes("realm = \"a, b\", NTLM");
+		assertEquals(14, auth.skipParameter(msg, 5, msg.length));
+		msg = bytes("realm=\"a\\\"b\", NTLM");
+		assertEquals(12, auth.skipParameter(msg, 5, msg.length));
+		// an unterminated quoted string runs to the end of the header
+		msg = bytes("realm=\"a, NTLM");
+		assertEquals(msg.length, auth.skipParameter(msg, 5, msg.length));
+	}
+}
@@ -0,0 +1,120 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContextCacheTest {
+	private static final int maxCache = 1000;
+
+	private BurpExtender extender;
+	private BurpExtender.ContextCache cache;
+	private List<String> disposed;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+		cache = extender.new ContextCache();
+		disposed = new ArrayList<String>();
+	}
+
+	private BurpExtender.ContextTokenSpnTriple add(String token) {
+		BurpExtender.ContextTokenSpnTriple ctst = TestSupport.fakeContext(
+				extender, token, disposed);
+		cache.AddToCache(ctst);
+		return ctst;
+	}
+
+	private long counter(String name) {
+		return ((AtomicLong) TestSupport.getField(extender, name)).get();
+	}
+
+	// moves an entry's creation time back, as if it had been added that
+	// long ago
+	private void age(String token, long millis) {
+		Map<?, ?> contextMap = (Map<?, ?>) TestSupport.getField(cache,
+				"contextMap");
+		for (Object cc : contextMap.values()) {
+			BurpExtender.ContextTokenSpnTriple ctst = (BurpExtender.ContextTokenSpnTriple) TestSupport
+					.getField(cc, "ctst");
+			if (ctst.getToken().equals(token)) {
+				TestSupport.setField(cc, "addedAt",
+						(Long) TestSupport.getField(cc, "addedAt") - millis);
+			}
+		}
+	}
+
+	@Test
+	public void hitAndMiss() {
+		BurpExtender.ContextTokenSpnTriple a = add("tokenA");
+
+		assertSame(a, cache.GetFromCache("tokenA"));
+		assertNull(cache.GetFromCache("tokenB"));
+		assertNull(cache.GetFromCache(null));
+		assertEquals(1, counter("contextCacheHitCount"));
+		assertEquals(1, counter("contextCacheMissCount"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void removeDoesNotDispose() {
+		add("tokenA");
+		cache.RemoveFromCache("tokenA");
+
+		assertTrue(cache.isEmpty());
+		assertNull(cache.GetFromCache("tokenA"));
+		// whoever removed it is still using it
+		assertTrue(disposed.isEmpty());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		for (int ii = 0; ii < maxCache; ii++) {
+			add("token" + ii);
+		}
+		cache.GetFromCache("token0");
+		add("token" + maxCache);
+
+		assertEquals(maxCache, cache.size());
+		assertEquals(Arrays.asList("token1"), disposed);
+		assertEquals(1, counter("contextCacheEvictionCount"));
+		assertNull(cache.GetFromCache("token1"));
+		assertTrue(cache.GetFromCache("token0") != null);
+	}
+
+	@Test
+	public void expiredEntryIsAMiss() {
+		add("tokenA");
+		age("tokenA", 10 * 60 * 1000);
+
+		assertNull(cache.GetFromCache("tokenA"));
+		assertEquals(Arrays.asList("tokenA"), disposed);
+		assertEquals(1, counter("contextCacheExpiredCount"));
+		assertTrue(cache.isEmpty());
+	}
+
+	@Test
+	public void expiresEntriesBehindRecentlyUsedOnes() {
+		add("tokenA");
+		add("tokenB");
+		// A is now the most recently used, but was added first
+		cache.GetFromCache("tokenA");
+		age("tokenA", 10 * 60 * 1000);
+		add("tokenC");
+
+		assertEquals(Arrays.asList("tokenA"), disposed);
+		assertEquals(2, cache.size());
+		assertTrue(cache.GetFromCache("tokenB") != null);
+		assertTrue(cache.GetFromCache("tokenC") != null);
+	}
+}
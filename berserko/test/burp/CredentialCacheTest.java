@@ -0,0 +1,69 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.security.auth.Subject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CredentialCacheTest {
+	private BurpExtender extender;
+	private FakeGssManager manager;
+	private ExecutorService ticketExecutor;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+		manager = new FakeGssManager();
+		ticketExecutor = Executors.newFixedThreadPool(8);
+		TestSupport.setField(extender, "manager", manager);
+		TestSupport.setField(extender, "ticketExecutor", ticketExecutor);
+	}
+
+	@After
+	public void tearDown() {
+		ticketExecutor.shutdownNow();
+	}
+
+	private void token(Subject subject, String host) throws Exception {
+		extender.getTokenWithLoginContext(subject, host + ":443",
+				Collections.singletonList("HTTP/" + host));
+	}
+
+	@Test
+	public void oneCredentialPerSubject() throws Exception {
+		Subject subject = new Subject();
+
+		token(subject, "a.example.com");
+		token(subject, "b.example.com");
+		token(subject, "a.example.com");
+
+		assertEquals(3, manager.contextsCreated.get());
+		assertEquals(1, manager.credentialsCreated.get());
+	}
+
+	@Test
+	public void newSubjectGetsNewCredential() throws Exception {
+		token(new Subject(), "a.example.com");
+		token(new Subject(), "a.example.com");
+
+		assertEquals(2, manager.credentialsCreated.get());
+	}
+
+	@Test
+	public void clearingTheLoginDropsTheCredential() throws Exception {
+		Subject subject = new Subject();
+
+		token(subject, "a.example.com");
+		extender.clearLoginContext();
+		token(subject, "a.example.com");
+
+		assertEquals(2, manager.credentialsCreated.get());
+	}
+}
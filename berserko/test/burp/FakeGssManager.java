@@ -0,0 +1,174 @@
+package burp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.Provider;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
+// a GSSManager that never goes near a KDC. Names and credentials are
+// dummies, and a context's initSecContext returns the SPN as its token,
+// after waiting tgsMillis as if it had fetched a service ticket. An SPN can
+// be held, in which case initSecContext for it waits until it's released
+class FakeGssManager extends GSSManager {
+	final AtomicInteger credentialsCreated = new AtomicInteger(0);
+	final AtomicInteger contextsCreated = new AtomicInteger(0);
+	final List<String> disposed = new CopyOnWriteArrayList<String>();
+	volatile long tgsMillis = 0;
+	private final ConcurrentHashMap<String, CountDownLatch> held = new ConcurrentHashMap<String, CountDownLatch>();
+	private final ConcurrentHashMap<String, CountDownLatch> reached = new ConcurrentHashMap<String, CountDownLatch>();
+
+	void hold(String spn) {
+		held.put(spn, new CountDownLatch(1));
+		reached.put(spn, new CountDownLatch(1));
+	}
+
+	void release(String spn) {
+		held.remove(spn).countDown();
+	}
+
+	// waits for a request for a held SPN to get as far as the "KDC"
+	boolean awaitHeld(String spn, long millis) throws InterruptedException {
+		return reached.get(spn).await(millis, TimeUnit.MILLISECONDS);
+	}
+
+	private <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(
+				FakeGssManager.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+
+	private GSSName name(final String spn) {
+		return proxy(GSSName.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method method, Object[] args) {
+				if (method.getName().equals("toString")) {
+					return spn;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private GSSContext context(final String spn) {
+		return proxy(GSSContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method method, Object[] args)
+					throws Exception {
+				if (method.getName().equals("initSecContext")) {
+					CountDownLatch latch = held.get(spn);
+					if (latch != null) {
+						reached.get(spn).countDown();
+						latch.await();
+					}
+					if (tgsMillis > 0) {
+						Thread.sleep(tgsMillis);
+					}
+					return spn.getBytes(StandardCharsets.ISO_8859_1);
+				}
+				if (method.getName().equals("dispose")) {
+					disposed.add(spn);
+					return null;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	@Override
+	public GSSName createName(String nameStr, Oid nameType) {
+		return name(nameStr);
+	}
+
+	@Override
+	public GSSCredential createCredential(GSSName name, int lifetime,
+			Oid mech, int usage) {
+		credentialsCreated.incrementAndGet();
+		return proxy(GSSCredential.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method method, Object[] args) {
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	@Override
+	public GSSContext createContext(GSSName peer, Oid mech,
+			GSSCredential myCred, int lifetime) {
+		contextsCreated.incrementAndGet();
+		return context(peer.toString());
+	}
+
+	@Override
+	public Oid[] getMechs() {
+		return new Oid[0];
+	}
+
+	@Override
+	public Oid[] getNamesForMech(Oid mech) {
+		return new Oid[0];
+	}
+
+	@Override
+	public Oid[] getMechsForName(Oid nameType) {
+		return new Oid[0];
+	}
+
+	@Override
+	public GSSName createName(byte[] name, Oid nameType) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public GSSName createName(String nameStr, Oid nameType, Oid mech) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public GSSName createName(byte[] name, Oid nameType, Oid mech) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public GSSCredential createCredential(int usage) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public GSSCredential createCredential(GSSName name, int lifetime,
+			Oid[] mechs, int usage) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public GSSContext createContext(GSSCredential myCred) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public GSSContext createContext(byte[] interProcessToken) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void addProviderAtFront(Provider p, Oid mech) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void addProviderAtEnd(Provider p, Oid mech) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,57 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseStatusCodeTest {
+	// what the fake helpers say, so a fallback to them is easy to spot
+	private static final short burpStatusCode = 999;
+
+	private BurpExtender extender;
+	private List<String> helperCalls;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+		helperCalls = new ArrayList<String>();
+		TestSupport.setField(extender, "helpers",
+				TestSupport.fakeHelpers(burpStatusCode, helperCalls));
+	}
+
+	private int statusCode(String resp) {
+		return extender.getResponseStatusCode(resp
+				.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void statusLines() {
+		assertEquals(401, statusCode("HTTP/1.1 401 Unauthorized\r\n\r\n"));
+		assertEquals(200, statusCode("HTTP/1.0 200 OK\r\n\r\n"));
+		assertEquals(404, statusCode("HTTP/2 404 \r\n\r\n"));
+		assertTrue(helperCalls.isEmpty());
+	}
+
+	@Test
+	public void noReasonPhrase() {
+		assertEquals(401, statusCode("HTTP/1.1 401\r\n\r\n"));
+		assertEquals(401, statusCode("HTTP/1.1 401\n\n"));
+		assertEquals(204, statusCode("HTTP/1.1 204"));
+		assertTrue(helperCalls.isEmpty());
+	}
+
+	@Test
+	public void notAStatusLine() {
+		assertEquals(burpStatusCode, statusCode("SIP/2.0 200 OK\r\n\r\n"));
+		assertEquals(burpStatusCode, statusCode("HTTP/1.1 4x1 Odd\r\n\r\n"));
+		assertEquals(burpStatusCode, statusCode("HTTP/1.1 4012 Odd\r\n\r\n"));
+		assertEquals(burpStatusCode, statusCode("HTTP/1.1 40"));
+		assertEquals(burpStatusCode, statusCode(""));
+	}
+}
@@ -0,0 +1,119 @@
+package burp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// scope list lookups at 10, 1k and 100k entries: the trie, against one
+// precompiled regex per entry (what hostnameIsInScope used to do, less the
+// pattern cache). The list is a mix of exact hosts, "*." subdomain entries
+// and entries with wildcards inside labels, and the hosts looked up are a
+// mix of hits and misses
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScopeMatcherBenchmark {
+	@Param({ "10", "1000", "100000" })
+	public int entries;
+
+	private List<String> list;
+	private BurpExtender extender;
+	private BurpExtender.ScopeMatcher matcher;
+	private List<Pattern> patterns;
+	private String[] hosts;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		list = new ArrayList<String>();
+
+		for (int ii = 0; ii < entries; ii++) {
+			switch (ii % 4) {
+			case 0:
+			case 1:
+				list.add(String.format("host%d.dept%d.example.com", ii,
+						random.nextInt(100)));
+				break;
+			case 2:
+				list.add(String.format("*.svc%d.example.net", ii));
+				break;
+			default:
+				list.add(String.format("web%d-?.corp%d.local", ii,
+						random.nextInt(10)));
+				break;
+			}
+		}
+
+		extender = new BurpExtender();
+		matcher = extender.new ScopeMatcher(list);
+		patterns = new ArrayList<Pattern>();
+		for (String entry : list) {
+			patterns.add(ScopeMatcherTest.referencePattern(entry));
+		}
+
+		hosts = new String[64];
+		for (int ii = 0; ii < hosts.length; ii++) {
+			String entry = list.get(random.nextInt(list.size()));
+			if (ii % 2 == 0) {
+				// a hit
+				hosts[ii] = entry.replace("*", "api").replace("?", "1");
+			} else {
+				// a miss, that still shares most of its labels with an entry
+				hosts[ii] = entry.startsWith("*.") ? entry.substring(2)
+						: "other." + entry.replace("?", "12");
+			}
+		}
+	}
+
+	private String nextHost() {
+		next = (next + 1) & (hosts.length - 1);
+		return hosts[next];
+	}
+
+	@Benchmark
+	public boolean trie() {
+		return matcher.matches(nextHost());
+	}
+
+	@Benchmark
+	public boolean regexPerEntry() {
+		String host = nextHost();
+		for (Pattern p : patterns) {
+			if (p.matcher(host).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Benchmark
+	public Object build() {
+		return extender.new ScopeMatcher(list);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				ScopeMatcherBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,180 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScopeMatcherTest {
+	private BurpExtender extender;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+	}
+
+	private BurpExtender.ScopeMatcher matcher(String... entries) {
+		return extender.new ScopeMatcher(Arrays.asList(entries));
+	}
+
+	// what an entry means, written the obvious (slow) way: * is any
+	// characters, ? is any character but a dot, everything else is literal
+	static Pattern referencePattern(String entry) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : entry.toLowerCase().toCharArray()) {
+			if (c == '*') {
+				sb.append(".*");
+			} else if (c == '?') {
+				sb.append("[^.]");
+			} else {
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(sb.toString());
+	}
+
+	@Test
+	public void exactEntries() {
+		BurpExtender.ScopeMatcher m = matcher("a.com", "www.corp.example.com");
+
+		assertTrue(m.matches("a.com"));
+		assertTrue(m.matches("www.corp.example.com"));
+		assertFalse(m.matches("b.a.com"));
+		assertFalse(m.matches("corp.example.com"));
+		// the dot is literal
+		assertFalse(m.matches("abcom"));
+	}
+
+	@Test
+	public void subdomainWildcard() {
+		BurpExtender.ScopeMatcher m = matcher("*.corp.com");
+
+		assertTrue(m.matches("a.corp.com"));
+		assertTrue(m.matches("a.b.corp.com"));
+		assertFalse(m.matches("corp.com"));
+		assertFalse(m.matches("acorp.com"));
+	}
+
+	@Test
+	public void wildcardAndExactForTheSameDomain() {
+		// each is a match on its own, and neither hides the other, whichever
+		// order they're listed in
+		for (List<String> entries : Arrays.asList(
+				Arrays.asList("*.corp.com", "corp.com", "www.corp.com"),
+				Arrays.asList("www.corp.com", "corp.com", "*.corp.com"))) {
+			BurpExtender.ScopeMatcher m = extender.new ScopeMatcher(entries);
+
+			assertTrue(m.matches("corp.com"));
+			assertTrue(m.matches("www.corp.com"));
+			assertTrue(m.matches("other.corp.com"));
+			assertTrue(m.matches("a.www.corp.com"));
+			assertFalse(m.matches("corp.com.evil.net"));
+		}
+	}
+
+	@Test
+	public void exactEntryBelowAWildcard() {
+		BurpExtender.ScopeMatcher m = matcher("web?.corp.com", "web.corp.com",
+				"db.web1.corp.com");
+
+		assertTrue(m.matches("web.corp.com"));
+		assertTrue(m.matches("web1.corp.com"));
+		assertTrue(m.matches("db.web1.corp.com"));
+		assertFalse(m.matches("web12.corp.com"));
+		assertFalse(m.matches("app.web1.corp.com"));
+	}
+
+	@Test
+	public void questionMarkDoesNotMatchADot() {
+		BurpExtender.ScopeMatcher m = matcher("a?b.com");
+
+		assertTrue(m.matches("axb.com"));
+		assertFalse(m.matches("a.b.com"));
+		assertFalse(m.matches("ab.com"));
+	}
+
+	@Test
+	public void wildcardsInsideAndAtTheStart() {
+		BurpExtender.ScopeMatcher m = matcher("intranet*", "x.*.y", "*-dev.corp.com");
+
+		assertTrue(m.matches("intranet"));
+		assertTrue(m.matches("intranet5.corp.com"));
+		assertTrue(m.matches("x.a.b.y"));
+		assertTrue(m.matches("x..y"));
+		assertFalse(m.matches("x.y"));
+		assertTrue(m.matches("a-dev.corp.com"));
+		assertTrue(m.matches("-dev.corp.com"));
+		assertFalse(m.matches("a-prod.corp.com"));
+	}
+
+	@Test
+	public void everything() {
+		BurpExtender.ScopeMatcher m = matcher("*");
+
+		assertTrue(m.matches("anything.at.all"));
+		assertTrue(m.matches(""));
+	}
+
+	@Test
+	public void ignoresCase() {
+		BurpExtender.ScopeMatcher m = matcher("*.Corp.COM", "Web?.Example.com");
+
+		assertTrue(m.matches("A.CORP.COM"));
+		assertTrue(m.matches("WEB1.example.COM"));
+	}
+
+	@Test
+	public void emptyList() {
+		BurpExtender.ScopeMatcher m = matcher();
+
+		assertFalse(m.matches("a.com"));
+		assertFalse(m.matches(""));
+	}
+
+	@Test
+	public void agreesWithReferenceOnRandomLists() {
+		String[] entries = { "*.corp.com", "a.com", "web?.int.net",
+				"foo*bar.org", "*x", "?.b.c", "a*.z.com", "x.*.y", "q?q*.w",
+				"*.*.k", "intranet*", "*-dev.corp.com", "web*", "*b.c", "?*",
+				"corp.com", "www.corp.com" };
+		String[] hosts = { "a.corp.com", "corp.com", "x.y.corp.com",
+				"www.corp.com", "a.com", "abcom", "b.a.com", "web1.int.net",
+				"web12.int.net", "web..int.net", "foo.bar.org", "fooxbar.org",
+				"foo.x.bar.org", "box", "b.x", "a.b.c", "ab.b.c", "a.z.com",
+				"ab.c.z.com", "z.com", "x.a.y", "x..y", "qaq.w", "qaqzz.w",
+				"q.q.w", "a.b.k", "a.k", "intranet5", "intranetx.y",
+				"a-dev.corp.com", "-dev.corp.com", "web", "webz.q",
+				".corp.com", "", "A.CORP.COM" };
+		Random random = new Random(1);
+
+		for (int round = 0; round < 500; round++) {
+			List<String> list = new ArrayList<String>();
+			for (String entry : entries) {
+				if (random.nextInt(3) == 0) {
+					list.add(entry);
+				}
+			}
+			Collections.shuffle(list, random);
+
+			BurpExtender.ScopeMatcher m = extender.new ScopeMatcher(list);
+
+			for (String host : hosts) {
+				boolean expected = false;
+				for (String entry : list) {
+					expected |= referencePattern(entry).matcher(
+							host.toLowerCase()).matches();
+				}
+				assertEquals(list + " " + host, expected, m.matches(host));
+			}
+		}
+	}
+}
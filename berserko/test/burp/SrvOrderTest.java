@@ -0,0 +1,95 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SrvOrderTest {
+	private BurpExtender extender;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+	}
+
+	// records as "priority weight port target"
+	private List<String> order(String... records) {
+		List<String[]> parsed = new ArrayList<String[]>();
+		for (String record : records) {
+			parsed.add(record.split(" "));
+		}
+		return extender.orderSrvRecords(parsed);
+	}
+
+	@Test
+	public void lowestPriorityFirst() {
+		for (int round = 0; round < 100; round++) {
+			List<String> ordered = order("20 100 88 c.", "0 0 88 a.",
+					"10 100 88 b1.", "10 1 88 b2.");
+
+			assertEquals("a.", ordered.get(0));
+			assertEquals(new HashSet<String>(Arrays.asList("b1.", "b2.")),
+					new HashSet<String>(ordered.subList(1, 3)));
+			assertEquals("c.", ordered.get(3));
+		}
+	}
+
+	@Test
+	public void priorityIsNumeric() {
+		assertEquals(Arrays.asList("a.", "b."), order("10 0 88 b.",
+				"9 0 88 a."));
+	}
+
+	@Test
+	public void everyRecordOnce() {
+		List<String> ordered = order("0 5 88 a.", "0 0 88 b.", "0 0 88 c.",
+				"1 3 88 d.", "1 3 88 e.");
+
+		assertEquals(5, ordered.size());
+		assertEquals(new HashSet<String>(Arrays.asList("a.", "b.", "c.",
+				"d.", "e.")), new HashSet<String>(ordered));
+	}
+
+	@Test
+	public void heavierRecordsTendToComeFirst() {
+		int heavyFirst = 0;
+		int zeroFirst = 0;
+		int rounds = 4000;
+
+		for (int round = 0; round < rounds; round++) {
+			List<String> ordered = order("0 10 88 light.", "0 0 88 zero.",
+					"0 90 88 heavy.");
+			if (ordered.get(0).equals("heavy.")) {
+				heavyFirst++;
+			}
+			if (ordered.get(0).equals("zero.")) {
+				zeroFirst++;
+			}
+		}
+
+		// expected 90/101 and 1/101 of the time
+		assertTrue("heavy first " + heavyFirst, heavyFirst > rounds * 0.85
+				&& heavyFirst < rounds * 0.93);
+		assertTrue("zero first " + zeroFirst, zeroFirst < rounds * 0.03);
+	}
+
+	@Test
+	public void allZeroWeights() {
+		List<String> ordered = order("0 0 88 a.", "0 0 88 b.");
+
+		assertEquals(new HashSet<String>(Arrays.asList("a.", "b.")),
+				new HashSet<String>(ordered));
+	}
+
+	@Test
+	public void noRecords() {
+		assertTrue(order().isEmpty());
+	}
+}
@@ -0,0 +1,172 @@
+package burp;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ietf.jgss.GSSContext;
+
+// what the tests need to reach inside a BurpExtender that was never loaded
+// into Burp
+final class TestSupport {
+	private TestSupport() {
+	}
+
+	static void setField(Object target, String name, Object value) {
+		try {
+			Field f = target.getClass().getDeclaredField(name);
+			f.setAccessible(true);
+			f.set(target, value);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Object getField(Object target, String name) {
+		try {
+			Field f = target.getClass().getDeclaredField(name);
+			f.setAccessible(true);
+			return f.get(target);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// just enough of Burp's helpers for the code paths that fall back to
+	// them. Messages are split into headers and body at the first blank line
+	// (or the end, if there isn't one), every response has the given status
+	// code, and the name of each method called is added to calls
+	static IExtensionHelpers fakeHelpers(final short statusCode,
+			final List<String> calls) {
+		return (IExtensionHelpers) Proxy.newProxyInstance(
+				TestSupport.class.getClassLoader(),
+				new Class<?>[] { IExtensionHelpers.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						calls.add(method.getName());
+
+						if (method.getName().equals("analyzeRequest")
+								&& args.length == 1
+								&& args[0] instanceof byte[]) {
+							return requestInfo((byte[]) args[0]);
+						}
+						if (method.getName().equals("analyzeResponse")) {
+							return responseInfo(statusCode);
+						}
+						if (method.getName().equals("buildHttpMessage")) {
+							return buildHttpMessage((List<?>) args[0],
+									(byte[]) args[1]);
+						}
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+	}
+
+	// a context that only knows how to be disposed of, which adds token to
+	// disposed
+	static BurpExtender.ContextTokenSpnTriple fakeContext(
+			BurpExtender extender, final String token,
+			final List<String> disposed) {
+		GSSContext context = (GSSContext) Proxy.newProxyInstance(
+				TestSupport.class.getClassLoader(),
+				new Class<?>[] { GSSContext.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("dispose")) {
+							disposed.add(token);
+							return null;
+						}
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+
+		return extender.new ContextTokenSpnTriple(context,
+				"HTTP/a.example.com", token);
+	}
+
+	private static IRequestInfo requestInfo(byte[] msg) {
+		final List<String> headers = new ArrayList<String>();
+		int lineStart = 0;
+		int bodyOffset = msg.length;
+
+		while (lineStart < msg.length) {
+			int lineEnd = lineStart;
+			while (lineEnd < msg.length && msg[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int valueEnd = lineEnd;
+			if (valueEnd > lineStart && msg[valueEnd - 1] == '\r') {
+				valueEnd--;
+			}
+			if (valueEnd == lineStart) {
+				bodyOffset = Math.min(lineEnd + 1, msg.length);
+				break;
+			}
+			headers.add(new String(msg, lineStart, valueEnd - lineStart,
+					StandardCharsets.ISO_8859_1));
+			lineStart = lineEnd + 1;
+		}
+
+		final int offset = bodyOffset;
+
+		return (IRequestInfo) Proxy.newProxyInstance(
+				TestSupport.class.getClassLoader(),
+				new Class<?>[] { IRequestInfo.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("getHeaders")) {
+							return headers;
+						}
+						if (method.getName().equals("getBodyOffset")) {
+							return offset;
+						}
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+	}
+
+	private static IResponseInfo responseInfo(final short statusCode) {
+		return (IResponseInfo) Proxy.newProxyInstance(
+				TestSupport.class.getClassLoader(),
+				new Class<?>[] { IResponseInfo.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("getStatusCode")) {
+							return statusCode;
+						}
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+	}
+
+	private static byte[] buildHttpMessage(List<?> headers, byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (Object header : headers) {
+			byte[] line = (header + "\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1);
+			out.write(line, 0, line.length);
+		}
+		out.write('\r');
+		out.write('\n');
+		out.write(body, 0, body.length);
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,72 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenFlightTest {
+	private static final String host = "slow.example.com";
+	private static final String spn = "HTTP/" + host;
+
+	private BurpExtender extender;
+	private FakeGssManager manager;
+	private ExecutorService ticketExecutor;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+		manager = new FakeGssManager();
+		ticketExecutor = Executors.newFixedThreadPool(8);
+		TestSupport.setField(extender, "manager", manager);
+		TestSupport.setField(extender, "ticketExecutor", ticketExecutor);
+		TestSupport.setField(extender, "ticketBudgetMillis", 100);
+	}
+
+	@After
+	public void tearDown() {
+		ticketExecutor.shutdownNow();
+	}
+
+	private BurpExtender.ContextTokenSpnTriple token() throws Exception {
+		return extender.getTokenWithLoginContext(new Subject(), host + ":443",
+				Collections.singletonList(spn));
+	}
+
+	// waits for the ticket executor to finish whatever is in flight
+	private void drain() throws Exception {
+		ticketExecutor.shutdown();
+		assertTrue(ticketExecutor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void contextNobodyWaitedForIsDisposed() throws Exception {
+		manager.hold(spn);
+
+		assertNull(token());
+		assertTrue(manager.disposed.isEmpty());
+
+		manager.release(spn);
+		drain();
+		assertEquals(Collections.singletonList(spn), manager.disposed);
+	}
+
+	@Test
+	public void contextThatWasUsedIsNotDisposed() throws Exception {
+		assertNotNull(token());
+
+		drain();
+		assertTrue(manager.disposed.isEmpty());
+	}
+}
@@ -0,0 +1,107 @@
+package burp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenLockingTest {
+	// these two land in different lock stripes
+	private static final String slowHost = "slow.example.com";
+	private static final String fastHost = "fast.example.com";
+
+	private BurpExtender extender;
+	private FakeGssManager manager;
+	private Subject subject;
+	private ExecutorService requests;
+	private ExecutorService ticketExecutor;
+
+	@Before
+	public void setUp() {
+		extender = new BurpExtender();
+		manager = new FakeGssManager();
+		subject = new Subject();
+		requests = Executors.newCachedThreadPool();
+		ticketExecutor = Executors.newFixedThreadPool(8);
+		TestSupport.setField(extender, "manager", manager);
+		TestSupport.setField(extender, "ticketExecutor", ticketExecutor);
+	}
+
+	@After
+	public void tearDown() {
+		requests.shutdownNow();
+		ticketExecutor.shutdownNow();
+	}
+
+	private Future<BurpExtender.ContextTokenSpnTriple> request(
+			final String host) {
+		return requests.submit(new Callable<BurpExtender.ContextTokenSpnTriple>() {
+			@Override
+			public BurpExtender.ContextTokenSpnTriple call() throws Exception {
+				return extender.getTokenWithLoginContext(subject, host
+						+ ":443", Collections.singletonList("HTTP/" + host));
+			}
+		});
+	}
+
+	private String token(String host) {
+		return Base64.getEncoder().encodeToString(
+				("HTTP/" + host).getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void slowHostDoesNotHoldUpOthers() throws Exception {
+		manager.hold("HTTP/" + slowHost);
+		Future<BurpExtender.ContextTokenSpnTriple> slow = request(slowHost);
+		assertTrue(manager.awaitHeld("HTTP/" + slowHost, 5000));
+
+		BurpExtender.ContextTokenSpnTriple fast = request(fastHost).get(5,
+				TimeUnit.SECONDS);
+		assertEquals(token(fastHost), fast.getToken());
+		assertTrue(!slow.isDone());
+
+		manager.release("HTTP/" + slowHost);
+		assertEquals(token(slowHost), slow.get(5, TimeUnit.SECONDS)
+				.getToken());
+	}
+
+	@Test
+	public void concurrentRequestsForOneHostShareTheKdcRequest()
+			throws Exception {
+		manager.hold("HTTP/" + slowHost);
+		List<Future<BurpExtender.ContextTokenSpnTriple>> waiting = new ArrayList<Future<BurpExtender.ContextTokenSpnTriple>>();
+		waiting.add(request(slowHost));
+		assertTrue(manager.awaitHeld("HTTP/" + slowHost, 5000));
+		for (int ii = 0; ii < 4; ii++) {
+			waiting.add(request(slowHost));
+		}
+
+		// the others are waiting for the first one's result, not asking too
+		Thread.sleep(200);
+		assertEquals(1, manager.contextsCreated.get());
+
+		manager.release("HTTP/" + slowHost);
+		for (Future<BurpExtender.ContextTokenSpnTriple> f : waiting) {
+			BurpExtender.ContextTokenSpnTriple ctst = f.get(5,
+					TimeUnit.SECONDS);
+			assertNotNull(ctst);
+			assertEquals(token(slowHost), ctst.getToken());
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package burp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// token throughput at 1, 8 and 64 threads, spread over one host or many.
+// There's no KDC here, so FakeGssManager stands in, with each service
+// ticket taking tgsMillis. Before tokens were locked per host, every one
+// was minted holding a single monitor, so throughput could never beat the
+// single-threaded figure, whatever the number of hosts
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TokenThroughputBenchmark {
+	@Param({ "1", "64" })
+	public int hosts;
+
+	@Param({ "2" })
+	public long tgsMillis;
+
+	private BurpExtender extender;
+	private ExecutorService ticketExecutor;
+	private Subject subject;
+	private String[] lockKeys;
+	private List<List<String>> spns;
+
+	@State(Scope.Thread)
+	public static class Requester {
+		private int next = (int) Thread.currentThread().getId();
+	}
+
+	@Setup
+	public void setUp() {
+		extender = new BurpExtender();
+		FakeGssManager manager = new FakeGssManager();
+		manager.tgsMillis = tgsMillis;
+		ticketExecutor = Executors.newFixedThreadPool(8);
+		TestSupport.setField(extender, "manager", manager);
+		TestSupport.setField(extender, "ticketExecutor", ticketExecutor);
+		subject = new Subject();
+
+		lockKeys = new String[hosts];
+		spns = new ArrayList<List<String>>();
+		for (int ii = 0; ii < hosts; ii++) {
+			lockKeys[ii] = "host" + ii + ".example.com:443";
+			spns.add(Collections.singletonList("HTTP/host" + ii
+					+ ".example.com"));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		ticketExecutor.shutdownNow();
+	}
+
+	private Object token(Requester r) throws Exception {
+		int host = (r.next++ & 0x7fffffff) % hosts;
+		return extender.getTokenWithLoginContext(subject, lockKeys[host],
+				spns.get(host));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object threads1(Requester r) throws Exception {
+		return token(r);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object threads8(Requester r) throws Exception {
+		return token(r);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public Object threads64(Requester r) throws Exception {
+		return token(r);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				TokenThroughputBenchmark.class.getSimpleName()).build()).run();
+	}
+}